@@ -0,0 +1,53 @@
+package com.xavier.config;
+
+import com.xavier.mapper.BlogMapper;
+import com.xavier.mapper.ShopMapper;
+import com.xavier.mapper.UserMapper;
+import com.xavier.utils.RedisBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.annotation.Resource;
+
+import static com.xavier.utils.RedisConstants.*;
+
+/**
+ * 启动时初始化店铺、博客、用户的布隆过滤器,并定时从数据库全量重建
+ */
+@Slf4j
+@Configuration
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class BloomFilterConfig implements ApplicationRunner {
+    @Resource
+    private RedisBloomFilter redisBloomFilter;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        redisBloomFilter.register(CACHE_SHOP_KEY, shopMapper::getAllIds);
+        redisBloomFilter.register(CACHE_BLOG_KEY, blogMapper::getAllIds);
+        redisBloomFilter.register(CACHE_USER_KEY, userMapper::getAllIds);
+    }
+
+    /**
+     * 定时重建,清理掉已经删除的数据,并根据数据量重新计算位数组大小
+     */
+    @Scheduled(cron = "${comments.bloom.rebuild-cron:0 0 4 * * ?}")
+    public void rebuild() {
+        log.info("开始重建布隆过滤器");
+        redisBloomFilter.rebuildAll();
+    }
+}
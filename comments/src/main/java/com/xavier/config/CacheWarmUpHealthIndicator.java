@@ -0,0 +1,29 @@
+package com.xavier.config;
+
+import com.xavier.utils.CacheWarmer;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存预热的健康检查,加入到readiness分组中,启动时的预热结束之前不接收流量
+ */
+@Component
+public class CacheWarmUpHealthIndicator extends AbstractHealthIndicator {
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        if (cacheWarmer.isWarmedUp()) {
+            builder.up();
+        } else {
+            builder.outOfService();
+        }
+        builder.withDetail("running", cacheWarmer.isRunning())
+                .withDetail("failedTasks", cacheWarmer.getFailedTasks())
+                .withDetail("tasks", cacheWarmer.getProgress());
+    }
+}
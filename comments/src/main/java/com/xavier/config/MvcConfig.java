@@ -1,13 +1,17 @@
 package com.xavier.config;
 
 import com.xavier.interceptor.LoginInterceptor;
+import com.xavier.interceptor.OperatorInterceptor;
 import com.xavier.interceptor.RefreshTokenInterceptor;
+import com.xavier.utils.RedisCircuitBreaker;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,9 +19,18 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    /**
+     * 可以访问运维接口的用户id
+     */
+    @Value("${comments.operator.user-ids:}")
+    private Set<Long> operatorIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, redisCircuitBreaker)).order(0);
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(
                         "/user/code",
@@ -29,5 +42,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**"
                 )
                 .order(1);
+        registry.addInterceptor(new OperatorInterceptor(operatorIds))
+                .addPathPatterns("/cache/**", "/admin/**")
+                .order(2);
     }
 }
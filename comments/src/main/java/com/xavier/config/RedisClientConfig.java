@@ -0,0 +1,31 @@
+package com.xavier.config;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.SocketOptions;
+import io.lettuce.core.TimeoutOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+public class RedisClientConfig {
+
+    @Value("${comments.redis.connect-timeout-millis:1000}")
+    private long connectTimeoutMillis;
+
+    /**
+     * redis断开之后lettuce默认会把命令缓存起来等待重连,请求要等到命令超时才失败
+     * 这里改为断开期间直接拒绝命令,让熔断器尽快发现redis不可用,秒杀切换到数据库降级
+     */
+    @Bean
+    public LettuceClientConfigurationBuilderCustomizer lettuceClientOptionsCustomizer() {
+        return builder -> builder.clientOptions(ClientOptions.builder()
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .socketOptions(SocketOptions.builder().connectTimeout(Duration.ofMillis(connectTimeoutMillis)).build())
+                .timeoutOptions(TimeoutOptions.enabled())
+                .build());
+    }
+}
@@ -1,18 +1,33 @@
 package com.xavier.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
 
+    @Value("${spring.redis.host}")
+    private String host;
+
+    @Value("${spring.redis.port}")
+    private int port;
+
+    @Value("${spring.redis.password:}")
+    private String password;
+
+    /**
+     * 和spring data redis使用同一个redis
+     */
     @Bean
     public RedissonClient redissonClient(){
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://127.0.0.0:6699").setPassword("123456");
+        config.useSingleServer().setAddress("redis://" + host + ":" + port)
+                .setPassword(StrUtil.isEmpty(password) ? null : password);
         return Redisson.create(config);
     }
 }
@@ -10,7 +10,6 @@ import com.xavier.service.IBlogService;
 import com.xavier.service.IUserService;
 import com.xavier.utils.SystemConstants;
 import com.xavier.utils.UserHolder;
-import jdk.internal.org.objectweb.asm.tree.analysis.Value;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -0,0 +1,27 @@
+package com.xavier.controller;
+
+
+import com.xavier.dto.Result;
+import com.xavier.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查看当前探测到的热点key
+     * @return 热点key以及访问速率
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.getHotKeys());
+    }
+}
@@ -6,12 +6,14 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.xavier.dto.Result;
 import com.xavier.entity.Shop;
 import com.xavier.service.IShopService;
+import com.xavier.utils.RedisBloomFilter;
 import com.xavier.utils.SystemConstants;
-import jdk.internal.org.objectweb.asm.tree.analysis.Value;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 
+import static com.xavier.utils.RedisConstants.CACHE_SHOP_KEY;
+
 @RestController
 @RequestMapping("/shop")
 public class ShopController {
@@ -19,6 +21,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private RedisBloomFilter redisBloomFilter;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -38,6 +43,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        redisBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -0,0 +1,29 @@
+package com.xavier.controller;
+
+
+import com.xavier.dto.Result;
+import com.xavier.service.IVoucherService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * 秒杀券的运维接口,只有运维人员可以访问
+ */
+@RestController
+@RequestMapping("/admin/voucher")
+public class VoucherAdminController {
+
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * 补充秒杀券的库存
+     * @param voucherId 秒杀券id
+     * @param count 补充的数量
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.addSeckillStock(voucherId, count);
+    }
+}
@@ -4,12 +4,18 @@ package com.xavier.controller;
 import com.xavier.dto.Result;
 import com.xavier.service.IVoucherOrderService;
 import com.xavier.service.IVoucherService;
+import com.xavier.utils.SeckillAdmission;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/voucher-order")
@@ -17,8 +23,33 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
     @PostMapping("/seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                 HttpServletResponse response) {
+        // 客户端超时重试时带上相同的Idempotency-Key,已经下过单的重试在准入之前直接返回第一次请求的订单id,不会被限流
+        Long orderId = voucherOrderService.findIdempotentOrder(voucherId, idempotencyKey);
+        if (orderId != null) {
+            return Result.ok(orderId);
+        }
+        // 超出准入速率的请求直接拒绝,通过Retry-After告诉客户端多久之后再试
+        long retryAfterMillis = seckillAdmission.tryAcquire(voucherId);
+        if (retryAfterMillis > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER,
+                    String.valueOf(TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999)));
+            return Result.fail("抢购人数过多,请稍后再试!");
+        }
+        return voucherOrderService.seckillVoucher(voucherId, idempotencyKey);
+    }
+
+    /**
+     * 轮询秒杀订单的写入状态
+     */
+    @GetMapping("/seckill/ticket/{orderId}")
+    public Result querySeckillTicket(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.querySeckillTicket(orderId);
     }
 }
@@ -0,0 +1,13 @@
+package com.xavier.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillTicket {
+    private Long orderId;
+    private Long voucherId;
+    /**
+     * pending: 已经抢到,正在写入数据库; persisted: 订单已经写入数据库; failed: 重试用完之后订单仍然没有写入,库存由对账归还
+     */
+    private String status;
+}
@@ -29,6 +29,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 预留给redis故障时数据库降级秒杀的库存,不加载到redis
+     */
+    private Integer fallbackStock;
+
     /**
      * 创建时间
      */
@@ -70,6 +70,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 预留给数据库降级秒杀的库存,不包含在stock中
+     */
+    @TableField(exist = false)
+    private Integer fallbackStock;
+
     /**
      * 生效时间
      */
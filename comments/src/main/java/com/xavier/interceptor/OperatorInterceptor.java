@@ -0,0 +1,34 @@
+package com.xavier.interceptor;
+
+import com.xavier.dto.UserDTO;
+import com.xavier.utils.UserHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+/**
+ * 运维接口的权限校验,只有配置的运维人员可以访问,需要排在登录拦截器之后
+ */
+public class OperatorInterceptor implements HandlerInterceptor {
+    private final Set<Long> operatorIds;
+
+    public OperatorInterceptor(Set<Long> operatorIds) {
+        this.operatorIds = operatorIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        if (!operatorIds.contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,8 +1,11 @@
 package com.xavier.interceptor;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.xavier.dto.UserDTO;
+import com.xavier.utils.RedisCircuitBreaker;
 import com.xavier.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -22,6 +25,14 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    /**
+     * 最近访问过的登录用户,redis不可用时用来识别用户,秒杀可以降级到数据库继续进行
+     */
+    private final LRUCache<String, UserDTO> recentUsers =
+            CacheUtil.newLRUCache(10000, TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL));
+
     public RefreshTokenInterceptor() {
     }
 
@@ -29,6 +40,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, RedisCircuitBreaker redisCircuitBreaker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisCircuitBreaker = redisCircuitBreaker;
+    }
+
 
     /**
      * 前置拦截器,对用户的登录状态进行校验
@@ -48,7 +64,20 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             return true;
         }
         // 从redis获取这个token对应的map
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+        Map<Object, Object> userMap;
+        try {
+            userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+        } catch (RuntimeException e) {
+            if (redisCircuitBreaker == null || !redisCircuitBreaker.recordFailure(e)) {
+                throw e;
+            }
+            // redis不可用,使用本地记录的用户
+            UserDTO user = recentUsers.get(token, false);
+            if (user != null) {
+                UserHolder.saveUser(user);
+            }
+            return true;
+        }
         // 找不到或为空直接返回错误
         if (userMap.isEmpty()){
             return true;
@@ -57,6 +86,9 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         UserDTO user = BeanUtil.fillBeanWithMap(userMap,new UserDTO(),false);
         // 刷新token过期时间
         stringRedisTemplate.expire(LOGIN_USER_KEY + token,LOGIN_USER_TTL, TimeUnit.MINUTES);
+        if (redisCircuitBreaker != null) {
+            recentUsers.put(token, user);
+        }
         // 校验成功,将信息保存到ThreadLocal中方便后续的取出
         UserHolder.saveUser(user);
         return true;
@@ -3,7 +3,9 @@ package com.xavier.mapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.xavier.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface BlogMapper extends BaseMapper<Blog> {
@@ -17,4 +19,8 @@ public interface BlogMapper extends BaseMapper<Blog> {
     Blog getBlogById(Long id);
 
     void updateLiked(Long id, int i);
+
+    List<Long> getAllIds();
+
+    List<Blog> getBlogByIds(@Param("ids") Collection<Long> ids);
 }
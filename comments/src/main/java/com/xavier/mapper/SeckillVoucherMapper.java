@@ -3,10 +3,29 @@ package com.xavier.mapper;
 import com.xavier.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.xavier.entity.Voucher;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
     SeckillVoucher getSeckillVoucherById(Long voucherId);
 
     boolean updateStock(Long voucherId);
+
+    boolean updateFallbackStock(Long voucherId);
+
+    boolean updateStockBy(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    boolean addStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    List<SeckillVoucher> getUnfinishedSeckillVouchers();
+
+    List<SeckillVoucher> getSeckillVouchersBeginBefore(@Param("until") LocalDateTime until, @Param("now") LocalDateTime now);
+
+    List<SeckillVoucher> getSeckillVouchersEndedBetween(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+
+    List<SeckillVoucher> getSeckillVouchersEndedAfter(@Param("afterId") Long afterId, @Param("since") LocalDateTime since,
+                                                      @Param("limit") int limit);
 }
@@ -2,7 +2,10 @@ package com.xavier.mapper;
 
 import com.xavier.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.session.ResultHandler;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface ShopMapper extends BaseMapper<Shop> {
@@ -12,4 +15,14 @@ public interface ShopMapper extends BaseMapper<Shop> {
     void updateShopById(Shop shop);
 
     List<Shop> getShopByTypeId(Integer typeId,int startIndex,int pageSize);
+
+    List<Long> getAllIds();
+
+    List<Shop> getShopByIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * 流式查询所有店铺,不会一次性把所有数据加载到内存中
+     * @param handler 每查询到一行数据的回调
+     */
+    void streamAllShops(ResultHandler<Shop> handler);
 }
@@ -2,6 +2,10 @@ package com.xavier.mapper;
 
 import com.xavier.entity.User;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface UserMapper extends BaseMapper<User> {
 
@@ -10,4 +14,8 @@ public interface UserMapper extends BaseMapper<User> {
     void addNewUser(User newUser);
 
     User getUserByUserId(Long userId);
+
+    List<Long> getAllIds();
+
+    List<User> getUserByIds(@Param("ids") Collection<Long> ids);
 }
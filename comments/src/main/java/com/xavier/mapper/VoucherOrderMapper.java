@@ -2,10 +2,17 @@ package com.xavier.mapper;
 
 import com.xavier.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
     void addVoucherOrder(VoucherOrder voucherOrder);
 
+    void addVoucherOrders(@Param("orders") List<VoucherOrder> orders);
+
+    List<Long> getUserIdsByVoucherId(Long voucherId);
+
     int countOrderByUserIdAndVoucherId(Long userId, Long voucherId);
 }
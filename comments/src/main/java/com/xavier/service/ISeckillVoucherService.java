@@ -9,4 +9,18 @@ public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
     boolean updateStock(Long voucherId);
 
+    /**
+     * 一次扣减多个库存
+     * @param voucherId 优惠券的id
+     * @param count 扣减的数量
+     * @return 库存不足时返回false
+     */
+    boolean updateStock(Long voucherId, int count);
+
+    /**
+     * 补充库存
+     * @return 秒杀券不存在时返回false
+     */
+    boolean addStock(Long voucherId, int count);
+
 }
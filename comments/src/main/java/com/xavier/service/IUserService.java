@@ -3,9 +3,11 @@ package com.xavier.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.xavier.dto.LoginFormDTO;
 import com.xavier.dto.Result;
+import com.xavier.dto.UserDTO;
 import com.xavier.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 public interface IUserService extends IService<User> {
 
@@ -15,6 +17,8 @@ public interface IUserService extends IService<User> {
 
     User getUserById(Long userId);
 
+    List<UserDTO> getUserDTOsByIds(List<Long> userIds);
+
     Result userSign();
 
     Result userSignCount();
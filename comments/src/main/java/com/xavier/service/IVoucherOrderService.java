@@ -9,4 +9,20 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 秒杀优惠券,和已经下单的请求并发的相同幂等key的请求返回第一次请求的订单id,
+     * 之后的重试由调用方先通过findIdempotentOrder查询
+     * @param idempotencyKey 客户端的Idempotency-Key,可以为空
+     */
+    Result seckillVoucher(Long voucherId, String idempotencyKey);
+
+    /**
+     * 查询当前用户使用这个幂等key已经下单的订单id
+     * @param idempotencyKey 客户端的Idempotency-Key,可以为空
+     * @return 没有下过单、没有幂等key或者redis不可用时返回null
+     */
+    Long findIdempotentOrder(Long voucherId, String idempotencyKey);
+
+    Result querySeckillTicket(Long orderId);
+
 }
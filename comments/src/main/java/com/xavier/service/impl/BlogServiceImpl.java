@@ -14,9 +14,12 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.xavier.service.IFollowService;
 import com.xavier.service.IUserService;
 import com.xavier.utils.CacheClient;
+import com.xavier.utils.RedisBloomFilter;
 import com.xavier.utils.SystemConstants;
 import com.xavier.utils.UserHolder;
 import io.lettuce.core.RedisClient;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -47,6 +50,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisBloomFilter redisBloomFilter;
+
     /**
      * 将上传的评论文件保存到数据库中
      * @param blog 评论
@@ -59,6 +65,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setUserId(user.getId());
         // 保存探店博文
         blogMapper.saveBlog(blog);
+        // 加入布隆过滤器
+        redisBloomFilter.add(CACHE_BLOG_KEY, blog.getId());
         // 将blog推送到所有粉丝的redis收件箱中
         // 查询粉丝
         List<Long> fansId = followService.getUserIdByFollowUserId(blog.getUserId());
@@ -94,11 +102,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 根据用户查询
         List<Blog> records = blogMapper.queryBolgOrderByHot((current - 1)*MAX_PAGE_SIZE,MAX_PAGE_SIZE);
 
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryUserByBlog((Blog) blog);
-            this.isBlogLiked((Blog) blog);
-        });
+        // 批量查询用户以及点赞状态
+        fillBlogs(records);
         return Result.ok(records);
     }
 
@@ -109,8 +114,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = blogMapper.getBlogById(id);
-        if (blog == null) return Result.fail("该评论不存在!!");
+        // 布隆过滤器中不存在,一定不存在,不需要查询数据库
+        if (!redisBloomFilter.mightContain(CACHE_BLOG_KEY, id)) return Result.fail("该评论不存在!!");
+        Blog cached = cacheClient.queryWithMutex(
+                CACHE_BLOG_KEY, id, Blog.class, id2 -> blogMapper.getBlogById(id2),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (cached == null) return Result.fail("该评论不存在!!");
+        // 缓存中的对象是共享的,复制一份再填充用户和点赞信息
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         queryUserByBlog(blog);
         isBlogLiked(blog);
         return Result.ok(blog);
@@ -149,6 +160,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             blogMapper.updateLiked(id,-1);
             stringRedisTemplate.opsForZSet().remove(BLOG_LIKED_KEY + id, user.getId().toString());
         }
+        // 点赞数变了,删除缓存
+        cacheClient.delete(CACHE_BLOG_KEY + id);
 
         return Result.ok();
     }
@@ -164,13 +177,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (top5UserId == null ||top5UserId.isEmpty()){
             return Result.ok();
         }
-        List<UserDTO> users  = new LinkedList<>();
-        for (Long userId : top5UserId.stream().map(Long::valueOf).collect(Collectors.toList())) {
-            UserDTO userDTO = new UserDTO();
-            User user = userService.getUserById(userId);
-            BeanUtil.copyProperties(user,userDTO);
-            users.add(userDTO);
-        }
+        List<Long> ids = top5UserId.stream().map(Long::valueOf).collect(Collectors.toList());
+        // 批量查询用户,保持点赞的先后顺序
+        List<UserDTO> users = userService.getUserDTOsByIds(ids).stream()
+                .filter(Objects::nonNull).collect(Collectors.toList());
         return Result.ok(users);
     }
 
@@ -213,16 +223,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        // 用于保存收件箱中的所有blog
-        List<Blog> blogs = new ArrayList<>(ids.size());
-
-        // 根据id查询blog并保存中blogs中
-        for (Long id : ids) {
-            Blog blog = blogMapper.getBlogById(id);
-            queryUserByBlog(blog);
-            isBlogLiked(blog);
-            blogs.add(blog);
-        }
+        // 一次IN查询收件箱中的所有blog,再按照收件箱的顺序排列
+        Map<Long, Blog> blogMap = blogMapper.getBlogByIds(ids).stream()
+                .collect(Collectors.toMap(Blog::getId, blog -> blog));
+        List<Blog> blogs = ids.stream().map(blogMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        // 批量查询用户以及点赞状态
+        fillBlogs(blogs);
         ScrollResult result = new ScrollResult();
         result.setList(blogs);
         result.setMinTime(minTime);
@@ -230,6 +236,36 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(result);
     }
 
+    /**
+     * 批量填充blog的作者信息以及当前用户是否点赞
+     * 作者使用一次批量查询,点赞状态使用pipeline一次查询
+     * @param blogs blog列表
+     */
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) return;
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = userService.getUserDTOsByIds(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user == null) continue;
+            blogs.get(i).setIcon(user.getIcon());
+            blogs.get(i).setName(user.getNickName());
+        }
+        UserDTO user = UserHolder.getUser();
+        if (user == null) return;
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     /**
      * 通过blog查询该blog的作者并将作者信息添加到blog中
      * @param blog blog
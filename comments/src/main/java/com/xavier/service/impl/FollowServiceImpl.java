@@ -94,13 +94,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         // 获取共同关注的userId列表
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
         // 查询共同关注用户信息
-        List<UserDTO> users = new LinkedList<>();
-        for (Long id2: ids){
-            UserDTO userDTO = new UserDTO();
-            User user = userService.getUserById(id2);
-            BeanUtil.copyProperties(user,userDTO);
-            users.add(userDTO);
-        }
+        List<UserDTO> users = userService.getUserDTOsByIds(ids).stream()
+                .filter(Objects::nonNull).collect(Collectors.toList());
         return Result.ok(users);
     }
 
@@ -23,4 +23,14 @@ public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper,
     public boolean updateStock(Long voucherId) {
         return seckillVoucherMapper.updateStock(voucherId);
     }
+
+    @Override
+    public boolean updateStock(Long voucherId, int count) {
+        return seckillVoucherMapper.updateStockBy(voucherId, count);
+    }
+
+    @Override
+    public boolean addStock(Long voucherId, int count) {
+        return seckillVoucherMapper.addStock(voucherId, count);
+    }
 }
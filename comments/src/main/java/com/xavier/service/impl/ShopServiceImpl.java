@@ -1,6 +1,6 @@
 package com.xavier.service.impl;
 
-import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -11,6 +11,7 @@ import com.xavier.entity.Shop;
 import com.xavier.mapper.ShopMapper;
 import com.xavier.service.IShopService;
 import com.xavier.utils.CacheClient;
+import com.xavier.utils.CacheRebuildExecutor;
 import com.xavier.utils.RedisData;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.geo.Distance;
@@ -24,10 +25,9 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.xavier.utils.RedisConstants.*;
 import static com.xavier.utils.SystemConstants.MAX_GEO_DISTANCE;
@@ -43,6 +43,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
     @Resource
     private ShopMapper shopMapper;
 
@@ -59,7 +62,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                 CACHE_SHOP_KEY, id, Shop.class, id2 -> shopMapper.getShopById(id2),
                 CACHE_SHOP_TTL, TimeUnit.MINUTES);
 */
-        Shop shop = cacheClient.queryWithMutex(
+/*        Shop shop = cacheClient.queryWithMutex(
+                CACHE_SHOP_KEY, id, Shop.class, id2 -> shopMapper.getShopById(id2),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+*/
+        Shop shop = cacheClient.queryWithEarlyRefresh(
                 CACHE_SHOP_KEY, id, Shop.class, id2 -> shopMapper.getShopById(id2),
                 CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null) return Result.fail("店铺不存在");
@@ -104,10 +111,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                     shop = JSONUtil.toBean(data, Shop.class);
                     return shop;
                 }
-                // doubleCheck失败,redis中确实过期了,开启独立线程,需要这个这进行缓存重建
-                ThreadUtil.execAsync(() -> {
-                    this.saveShop2Redis(1L,20L);
-                });
+                // doubleCheck失败,redis中确实过期了,提交到后台重建线程池进行缓存重建
+                cacheRebuildExecutor.submit(key,
+                        () -> this.saveShop2Redis(id, TimeUnit.MINUTES.toSeconds(CACHE_SHOP_TTL)));
             } finally {
                 // 释放锁
                 unlock(lockKey);
@@ -239,8 +245,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 所以这里直接使用一个mybatis-plus中的update方法
 //        shopMapper.updateShopById(shop);
         updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        // 删除缓存,同时通知所有节点删除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
 
         return Result.ok("更新店铺数据成功!!");
     }
@@ -276,20 +282,38 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (results == null) return Result.ok(Collections.emptyList());
         // 获取信息内容
         List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> page =
+                content.stream().skip(startIndex).collect(Collectors.toList());
+        List<Long> ids = page.stream()
+                .map(result -> Long.valueOf(result.getContent().getName()))
+                .collect(Collectors.toList());
+        // 批量查询店铺信息,一次MGET,未命中的一次IN查询
+        List<Shop> cached = cacheClient.queryBatchWithEarlyRefresh(
+                CACHE_SHOP_KEY, ids, Shop.class, this::getShopMapByIds, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // 用于保存店铺信息
-        List<Shop> shops = new ArrayList<>();
-        // 遍历根据获取到的店铺id查询店铺信息,以及将distance填入shop中
-        content.stream().skip(startIndex).forEach(result -> {
-            Long id = Long.valueOf(result.getContent().getName());
-            Double distance = result.getDistance().getValue();
-            Shop shop = shopMapper.getShopById(id);
-            shop.setDistance(distance);
-            shops.add(shop);
-        });
+        List<Shop> shops = new ArrayList<>(page.size());
+        // 将distance填入shop中
+        for (int i = 0; i < page.size(); i++) {
+            Shop shop = cached.get(i);
+            if (shop == null) continue;
+            // 缓存中的对象可能被其他请求共享,拷贝一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(page.get(i).getDistance().getValue());
+            shops.add(copy);
+        }
         // 返回
         return Result.ok(shops);
     }
 
+    /**
+     * 根据id集合批量查询店铺信息
+     * @param ids 店铺id集合
+     * @return 店铺id到店铺信息的映射
+     */
+    private Map<Long, Shop> getShopMapByIds(Collection<Long> ids) {
+        return shopMapper.getShopByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+    }
+
     /**
      * 获取锁,使用redis中的setnx功能,如果redis中已经存在该键则返回false,不存在则创建并返回true
      *
@@ -1,13 +1,11 @@
 package com.xavier.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.xavier.dto.Result;
 import com.xavier.entity.ShopType;
 import com.xavier.mapper.ShopTypeMapper;
 import com.xavier.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.xavier.utils.CacheClient;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -21,31 +19,20 @@ import static com.xavier.utils.RedisConstants.CACHE_SHOP_TTL;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
     @Resource
     private ShopTypeMapper shopTypeMapper;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result getTypeList() {
-        // 查询店铺的类似,首先到redis中查询
-        String shopListCache = stringRedisTemplate.opsForValue().get(CACHE_SHOP_LIST_KEY);
-        // redis中查询到了,直接返回
-        if (StrUtil.isNotBlank(shopListCache)) {
-            // 类型转换
-            List<ShopType> shopTypeList = JSONUtil.toList(shopListCache, ShopType.class);
-            return Result.ok(shopTypeList);
-        }
-        // redis中没有查询到,去查询数据库
-        List<ShopType> shopTypeList = shopTypeMapper.getShopList();
+        // 查询店铺的类型,通过CacheClient查询,与其他缓存共用本地缓存、互斥重建以及监控指标
+        List<ShopType> shopTypeList = cacheClient.queryListWithMutex(CACHE_SHOP_LIST_KEY, "", ShopType.class,
+                id -> shopTypeMapper.getShopList(), CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // 数据库没有查到,报错
         if (shopTypeList == null || shopTypeList.isEmpty()){
             return Result.fail("数据查询失败");
         }
-        // 数据库查到了
-        // 保存进redis
-        String shopTypeListJson = JSONUtil.toJsonStr(shopTypeList);
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_LIST_KEY,shopTypeListJson,CACHE_SHOP_TTL, TimeUnit.MINUTES);
         //返回
         return Result.ok(shopTypeList);
     }
@@ -13,6 +13,8 @@ import com.xavier.dto.UserDTO;
 import com.xavier.entity.User;
 import com.xavier.mapper.UserMapper;
 import com.xavier.service.IUserService;
+import com.xavier.utils.CacheClient;
+import com.xavier.utils.RedisBloomFilter;
 import com.xavier.utils.RegexUtils;
 import com.xavier.utils.SystemConstants;
 import com.xavier.utils.UserHolder;
@@ -30,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.xavier.utils.RedisConstants.*;
 
@@ -43,6 +46,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisBloomFilter redisBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 发送验证法的service方法
      * @param phone 发送验证吗的手机号码
@@ -86,6 +95,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             String randomNickName = RandomUtil.randomString(16);
             loginUser = new User(loginForm.getPhone(),randomNickName);
             userMapper.addNewUser(loginUser);
+            // 加入布隆过滤器
+            redisBloomFilter.add(CACHE_USER_KEY, loginUser.getId());
             return Result.ok("验证码校验成功,检测到该用户还未注册,直接注册一个新用户");
         }
         // 隐藏用户信息,值保留可以辨识的重要信息
@@ -108,9 +119,26 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
      */
     @Override
     public User getUserById(Long userId) {
+        // 布隆过滤器中不存在,一定不存在,不需要查询数据库
+        if (!redisBloomFilter.mightContain(CACHE_USER_KEY, userId)) {
+            return null;
+        }
         return userMapper.getUserByUserId(userId);
     }
 
+    /**
+     * 批量查询用户信息,使用CacheClient的批量查询,一次MGET加一次IN查询
+     * @param userIds 用户id列表
+     * @return 与userIds顺序一致的用户信息列表,不存在的用户对应位置为null
+     */
+    @Override
+    public List<UserDTO> getUserDTOsByIds(List<Long> userIds) {
+        return cacheClient.queryBatch(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userMapper.getUserByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     /**
      * 用户签到的函数
      * @return 返回签到结果
@@ -1,28 +1,42 @@
 package com.xavier.service.impl;
 
-import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.xavier.dto.Result;
+import com.xavier.dto.SeckillTicket;
 import com.xavier.entity.VoucherOrder;
 import com.xavier.mapper.VoucherOrderMapper;
 import com.xavier.service.ISeckillVoucherService;
 import com.xavier.service.IVoucherOrderService;
-import com.xavier.utils.RedisIWorker;
+import com.xavier.utils.HotKeyDetector;
+import com.xavier.utils.IIdWorker;
+import com.xavier.utils.RedisCircuitBreaker;
+import com.xavier.utils.SeckillDbFallback;
+import com.xavier.utils.SeckillOrderPipeline;
+import com.xavier.utils.SeckillOrderStreamConsumer;
+import com.xavier.utils.SeckillScriptBatcher;
+import com.xavier.utils.SeckillSoldOut;
+import com.xavier.utils.SeckillStockShards;
+import com.xavier.utils.SeckillTickets;
 import com.xavier.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
-import static com.xavier.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_IDEMPOTENCY_TTL;
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_LOST_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_LOST_MAX;
 import static com.xavier.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 @Slf4j
@@ -35,51 +49,84 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIWorker redisIWorker;
+    private IIdWorker idWorker;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillOrderPipeline seckillOrderPipeline;
+
+    @Resource
+    private SeckillOrderStreamConsumer seckillOrderStreamConsumer;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    @Resource
+    private SeckillTickets seckillTickets;
+
+    @Resource
+    private SeckillScriptBatcher seckillScriptBatcher;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private SeckillDbFallback seckillDbFallback;
+
+    /**
+     * 订单队列的类型,stream: redis stream, memory: 内存中的分区队列
+     */
+    @Value("${comments.seckill.order.queue:stream}")
+    private String orderQueue;
+
+    @Value("${comments.seckill.order.stream.max-length:1000000}")
+    private long streamMaxLength;
+
+    /**
+     * Idempotency-Key的最大长度
+     */
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 64;
+
     private static final DefaultRedisScript<Long> seckillScript;
 
+    private static final DefaultRedisScript<Long> seckillShardScript;
+
     // 静态代码块初始化lua脚本
     static {
         seckillScript = new DefaultRedisScript<>();
         seckillScript.setLocation(new ClassPathResource("seckill.lua"));
         seckillScript.setResultType(Long.class);
-    }
-
-    // 阻塞队列的特点:当队列中没有元素的时候,如果一个线程想去队列中获取元素,则线程会在这里阻塞直到有元素为止
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 创建只有一个线程的线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = ThreadUtil.newExecutor(1);
-
-    /**
-     * 实现Runnable的异步类
-     * run方法中循环执行阻塞队列中的数据添加到数据库中
-     */
-    private class VoucherOrderHandler implements Runnable{
-        @Override
-        public void run() {
-            try {
-                while (true){
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 更新数据库数据
-                    updateDataBase(voucherOrder);
-                }
-            } catch (InterruptedException e) {
-                log.error("处理订单异常!!",e);
-            }
-        }
+        seckillShardScript = new DefaultRedisScript<>();
+        seckillShardScript.setLocation(new ClassPathResource("seckill_shard.lua"));
+        seckillShardScript.setResultType(Long.class);
     }
 
     /**
      * 使用@PostConstruct注解,在类加载的时候便会执行这个函数
-     * 函数中使用线程池来去提交我们的任务
+     * 启动stream的消费者或者按照优惠券分区的订单写入管道,批量写入数据库
      */
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        if (isStreamQueue()) {
+            seckillOrderStreamConsumer.start(this::persistOrders, this::failOrders);
+        } else {
+            seckillOrderPipeline.start(this::persistOrders, this::failOrders);
+        }
+    }
+
+    private boolean isStreamQueue() {
+        return "stream".equals(orderQueue);
     }
     /**
      * 秒杀优惠券优化后的业务
@@ -89,42 +136,335 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
+        return seckillVoucher(voucherId, null);
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId, String idempotencyKey) {
+        if (idempotencyKey != null && idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            return Result.fail("Idempotency-Key不能超过" + MAX_IDEMPOTENCY_KEY_LENGTH + "个字符!");
+        }
+        Long userId = UserHolder.getUser().getId();
+        // redis不可用期间直接在数据库中秒杀,幂等key保存在redis中,降级期间不生效
+        if (redisCircuitBreaker.isOpen() && seckillDbFallback.isEnabled()) {
+            return seckillDbFallback.seckill(voucherId, userId);
+        }
+        // 幂等key按照用户和优惠券隔离,不同用户使用相同的key互不影响
+        String idempotencyRedisKey = StrUtil.isBlank(idempotencyKey)
+                ? null : seckillStockShards.idempotencyKey(voucherId, userId, idempotencyKey);
+        try {
+            return seckillInRedis(voucherId, userId, idempotencyRedisKey);
+        } catch (RuntimeException e) {
+            if (!redisCircuitBreaker.recordFailure(e)) {
+                throw e;
+            }
+            log.error("秒杀访问redis失败,优惠券:{}", voucherId, e);
+            return Result.fail("系统繁忙,请稍后再试!");
+        }
+    }
+
+    /**
+     * 客户端重试的请求在准入限流之前查询,直接返回第一次请求的订单id,不再占用准入的名额,售罄之后的重试也一样
+     */
+    @Override
+    public Long findIdempotentOrder(Long voucherId, String idempotencyKey) {
+        if (StrUtil.isBlank(idempotencyKey) || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH
+                || redisCircuitBreaker.isOpen()) {
+            return null;
+        }
         Long userId = UserHolder.getUser().getId();
-        // 执行脚本
-        Long result = stringRedisTemplate.execute(
-                seckillScript,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), SECKILL_STOCK_KEY, SECKILL_ORDER_KEY
-        );
-        int r = result.intValue();
-        // 购买失败
-        if (r != 0) {
-            return Result.fail(r == 1 ? "库存不足,请下次再来!" : "你已经购买过了!!");
-        }
-        // 购买成功
-        long orderId = redisIWorker.nextID("order");
+        String existing;
+        try {
+            existing = stringRedisTemplate.opsForValue().get(seckillStockShards.idempotencyKey(voucherId, userId, idempotencyKey));
+        } catch (RuntimeException e) {
+            // 查询失败按照新的请求处理,秒杀时再判断是否降级
+            redisCircuitBreaker.recordFailure(e);
+            log.warn("查询幂等key失败,优惠券:{}", voucherId, e);
+            return null;
+        }
+        return existing == null ? null : Long.valueOf(existing);
+    }
+
+    /**
+     * 在redis中秒杀,订单异步写入数据库
+     * @param idempotencyKey 请求的幂等key在redis中的key,没有时为null
+     */
+    private Result seckillInRedis(Long voucherId, Long userId, String idempotencyKey) {
+        // 库存的扣减必须在lua脚本中原子完成,不能使用本地副本,这里只统计访问量用于发现热点
+        hotKeyDetector.record(SECKILL_STOCK_KEY + voucherId);
+        // 已经售罄的直接在本地拒绝
+        if (seckillSoldOut.isSoldOut(voucherId)) {
+            return Result.fail("库存不足,请下次再来!");
+        }
+        long start = System.currentTimeMillis();
+        boolean stream = isStreamQueue();
+        int home = seckillStockShards.homeShard(userId);
+        long orderId;
+        String[] args;
+        long result;
+        try {
+            // 订单id需要在脚本中和库存一起写入stream,所以先生成
+            orderId = idWorker.nextID("order");
+            args = new String[]{userId.toString(), voucherId.toString(), String.valueOf(orderId),
+                    stream ? "1" : "0", String.valueOf(streamMaxLength),
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(SECKILL_IDEMPOTENCY_TTL))};
+            List<String> keys = new ArrayList<>(Arrays.asList(seckillStockShards.stockKey(voucherId, home),
+                    seckillStockShards.orderKey(voucherId, home), seckillStockShards.streamKey(voucherId, home),
+                    seckillStockShards.windowKey(voucherId, home)));
+            if (idempotencyKey != null) {
+                keys.add(idempotencyKey);
+            }
+            // 先在用户所在的分片上执行脚本,同时记录用户;并发的请求合并成一批执行,减少redis的往返和连接占用
+            result = seckillScriptBatcher.isEnabled()
+                    ? seckillScriptBatcher.seckill(home, voucherId, userId, orderId, idempotencyKey)
+                    : stringRedisTemplate.execute(seckillScript, keys, (Object[]) args);
+        } catch (RuntimeException e) {
+            return fallbackIfNotExecuted(voucherId, userId, e);
+        }
+        redisCircuitBreaker.recordSuccess();
+        int r = (int) result;
+        if (r == 7) {
+            // 并发的重试请求,第一次请求已经在脚本中下单了
+            String existing = stringRedisTemplate.opsForValue().get(idempotencyKey);
+            return existing != null ? Result.ok(Long.valueOf(existing)) : Result.fail("你已经购买过了!!");
+        }
+        // 秒杀时间在脚本中判断,不需要查询数据库
+        if (r == 4) {
+            return Result.fail("秒杀尚未开始!");
+        }
+        if (r == 5) {
+            return Result.fail("秒杀已经结束!");
+        }
+        if (r == 6) {
+            return Result.fail("秒杀不存在或者已经结束!");
+        }
+        if (r == 2) {
+            return Result.fail("你已经购买过了!!");
+        }
+        int shard = home;
+        if (r == 3) {
+            // 用户所在的分片没有库存了,依次去其他分片扣减
+            shard = -1;
+            try {
+                for (int i = 1; i < seckillStockShards.getShards(); i++) {
+                    int other = (home + i) % seckillStockShards.getShards();
+                    Long taken = stringRedisTemplate.execute(
+                            seckillShardScript,
+                            Arrays.asList(seckillStockShards.stockKey(voucherId, other), seckillStockShards.streamKey(voucherId, other)),
+                            (Object[]) args
+                    );
+                    if (taken != null && taken == 0) {
+                        shard = other;
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // 用户和幂等key要回滚,否则用户没有买到却不能再下单;超时的脚本可能已经在其他分片扣减了库存,
+                // stream模式下订单也已经写入,对账会把用户补写回来,这期间的重复下单由订单表的唯一索引拦住
+                log.error("去其他分片扣减库存失败,回滚用户:{},优惠券:{}", userId, voucherId, e);
+                try {
+                    rollbackHomeShard(voucherId, userId, home, idempotencyKey);
+                } catch (RuntimeException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                throw e;
+            }
+            if (shard < 0) {
+                // 所有分片都没有库存,移除脚本中记录的幂等key和用户,标记售罄
+                rollbackHomeShard(voucherId, userId, home, idempotencyKey);
+                seckillSoldOut.markSoldOut(voucherId, start);
+                return Result.fail("库存不足,请下次再来!");
+            }
+        }
+        // 售罄标记放行的重新检查请求买到了,说明还有库存
+        seckillSoldOut.clearLocal(voucherId);
+        // 购买成功,订单已经在脚本中写入stream,返回的订单id用来查询写入状态
+        if (stream) {
+            seckillTickets.create(orderId, userId, voucherId);
+            return Result.ok(orderId);
+        }
         // 新建订单对象
         VoucherOrder voucherOrder = new VoucherOrder();
         voucherOrder.setId(orderId);
         voucherOrder.setVoucherId(voucherId);
         voucherOrder.setUserId(userId);
-        // 使用阻塞队列进行数据库下单
-        orderTasks.add(voucherOrder);
+        // 提交到订单管道异步写入数据库
+        if (!seckillOrderPipeline.submit(voucherOrder)) {
+            // 队列满了,回滚redis中的用户和库存,用户确实被移除了才归还库存,防止重复回滚
+            log.warn("订单队列已满,回滚订单:{}", orderId);
+            // 先删除幂等key,回滚期间的重试最多被当成重复下单,不会拿到被回滚的订单id
+            deleteIdempotencyKey(idempotencyKey);
+            Long removed = stringRedisTemplate.opsForSet().remove(seckillStockShards.orderKey(voucherId, home), userId.toString());
+            if (removed != null && removed > 0) {
+                stringRedisTemplate.opsForValue().increment(seckillStockShards.stockKey(voucherId, shard));
+                seckillSoldOut.reset(voucherId);
+            }
+            return Result.fail("系统繁忙,请稍后再试!");
+        }
+        seckillTickets.create(orderId, userId, voucherId);
         return Result.ok(orderId);
     }
 
+    /**
+     * 在redis中还没有写入任何东西,命令确定没有发送到redis时可以直接降级到数据库;
+     * 超时的脚本可能已经执行了,降级可能重复下单,交给上层返回繁忙
+     */
+    private Result fallbackIfNotExecuted(Long voucherId, Long userId, RuntimeException e) {
+        if (!RedisCircuitBreaker.isNotExecuted(e) || !seckillDbFallback.isEnabled()) {
+            throw e;
+        }
+        redisCircuitBreaker.recordFailure(e);
+        log.warn("redis不可用,秒杀降级到数据库,优惠券:{}", voucherId);
+        return seckillDbFallback.seckill(voucherId, userId);
+    }
+
+    /**
+     * 移除脚本在用户所在的分片上记录的幂等key和用户,用户所在的分片没有扣减库存,不需要归还
+     */
+    private void rollbackHomeShard(Long voucherId, Long userId, int home, String idempotencyKey) {
+        deleteIdempotencyKey(idempotencyKey);
+        stringRedisTemplate.opsForSet().remove(seckillStockShards.orderKey(voucherId, home), userId.toString());
+    }
+
+    private void deleteIdempotencyKey(String idempotencyKey) {
+        if (idempotencyKey != null) {
+            stringRedisTemplate.delete(idempotencyKey);
+        }
+    }
+
+    /**
+     * 查询秒杀订单的写入状态
+     * 票据过期或者创建失败时查询数据库,订单存在就是已经写入
+     * @param orderId 秒杀返回的订单id
+     */
+    @Override
+    public Result querySeckillTicket(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        // 降级期间的订单直接写入了数据库,没有票据
+        SeckillTicket ticket = redisCircuitBreaker.isOpen() ? null : seckillTickets.get(orderId, userId);
+        if (ticket != null) {
+            return Result.ok(ticket);
+        }
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !userId.equals(voucherOrder.getUserId())) {
+            return Result.fail("订单不存在!");
+        }
+        ticket = new SeckillTicket();
+        ticket.setOrderId(orderId);
+        ticket.setVoucherId(voucherOrder.getVoucherId());
+        ticket.setStatus(SeckillTickets.PERSISTED);
+        return Result.ok(ticket);
+    }
+
+    /**
+     * 写入一批订单并更新它们的票据
+     * 写入失败的订单在stream中没有ack,在内存队列中由管道重试,都会被重新写入,票据保持pending,
+     * 重试用完之后交给failOrders
+     * @return 写入失败的订单
+     */
+    private List<VoucherOrder> persistOrders(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> failed = updateDataBaseInBatch(voucherOrders);
+        if (failed.isEmpty()) {
+            seckillTickets.update(voucherOrders, SeckillTickets.PERSISTED);
+            return failed;
+        }
+        Set<VoucherOrder> failedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        failedSet.addAll(failed);
+        List<VoucherOrder> persisted = new ArrayList<>(voucherOrders.size() - failed.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!failedSet.contains(voucherOrder)) {
+                persisted.add(voucherOrder);
+            }
+        }
+        seckillTickets.update(persisted, SeckillTickets.PERSISTED);
+        return failed;
+    }
+
+    /**
+     * 重试用完之后仍然没有写入数据库的订单,记录到丢失列表中并把票据改为failed
+     * redis中仍然有这些用户的购买记录,票据不再是pending之后,对账会把它们当作丢失的订单,修复时移除用户并归还库存
+     */
+    private void failOrders(List<VoucherOrder> voucherOrders) {
+        stringRedisTemplate.opsForList().rightPushAll(SECKILL_ORDER_LOST_KEY,
+                voucherOrders.stream().map(JSONUtil::toJsonStr).toArray(String[]::new));
+        stringRedisTemplate.opsForList().trim(SECKILL_ORDER_LOST_KEY, -SECKILL_ORDER_LOST_MAX, -1);
+        seckillTickets.update(voucherOrders, SeckillTickets.FAILED);
+    }
+
+    /**
+     * 批量更新数据库的操作
+     * 每张优惠券只执行一次扣减库存,所有订单使用一条多行insert插入,在同一个事务中完成;
+     * 某张优惠券的库存不够扣减整批数量时整批回滚,逐个写入,每个订单单独检查库存,库存不足的订单作为失败返回
+     * @param voucherOrders 一批订单信息
+     * @return 写入失败的订单
+     */
+    private List<VoucherOrder> updateDataBaseInBatch(List<VoucherOrder> voucherOrders){
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                // 按照优惠券聚合扣减库存
+                Map<Long, Integer> counts = new HashMap<>();
+                for (VoucherOrder voucherOrder : voucherOrders) {
+                    counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+                }
+                counts.forEach((voucherId, count) -> {
+                    if (!seckillVoucherService.updateStock(voucherId, count)) {
+                        throw new IllegalStateException("数据库库存不足,优惠券:" + voucherId + ",扣减数量:" + count);
+                    }
+                });
+                // 这里直接将voucherOrder写入数据库了
+                // 其他也可以像我们前面做的一样加一个分布式锁来实现,
+                // 但是已经没必要了,因为我们已经的redis将重复下单的用户过滤掉了,
+                // 理论上不会出现同一个用户进入这个函数的情况,但是自己也可以实现做一个兜底
+                voucherOrderMapper.addVoucherOrders(voucherOrders);
+            });
+            return Collections.emptyList();
+        } catch (Exception e) {
+            // 整批失败,逐个写入,把出问题的订单隔离出来
+            log.error("订单批量写入失败,逐个重试,共{}个订单", voucherOrders.size(), e);
+            List<VoucherOrder> failed = new ArrayList<>();
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                if (!updateDataBase(voucherOrder)) {
+                    failed.add(voucherOrder);
+                }
+            }
+            return failed;
+        }
+    }
+
     /**
      * 更新数据库的操作
      * 包括扣减库存以及插入订单
      * @param voucherOrder 订单信息
+     * @return 是否写入成功,订单已经存在也算成功;数据库库存不足或者用户已经有其他订单时不插入订单,返回失败
      */
-    private void updateDataBase(VoucherOrder voucherOrder){
-        // 扣减库存
-        seckillVoucherService.updateStock(voucherOrder.getVoucherId());
-        // 这里直接将voucherOrder写入数据库了
-        // 其他也可以像我们前面做的一样加一个分布式锁来实现,
-        // 但是已经没必要了,因为我们已经的redis将重复下单的用户过滤掉了,
-        // 理论上不会出现同一个用户进入这个函数的情况,但是自己也可以实现做一个兜底
-        voucherOrderMapper.addVoucherOrder(voucherOrder);
+    private boolean updateDataBase(VoucherOrder voucherOrder){
+        try {
+            Boolean success = transactionTemplate.execute(status -> {
+                // 扣减库存,stock > 0 的条件保证不会超卖
+                if (!seckillVoucherService.updateStock(voucherOrder.getVoucherId())) {
+                    return false;
+                }
+                voucherOrderMapper.addVoucherOrder(voucherOrder);
+                return true;
+            });
+            if (!Boolean.TRUE.equals(success)) {
+                // redis中扣减成功了数据库却没有库存,两边的库存不一致,需要对账处理
+                log.error("数据库库存不足,订单没有写入:{}", voucherOrder);
+                return false;
+            }
+            return true;
+        } catch (DuplicateKeyException e) {
+            // stream中的订单写入之后还没有ack就宕机了,重新投递时订单已经存在,事务回滚了这次的库存扣减
+            if (getById(voucherOrder.getId()) != null) {
+                log.info("订单已经存在:{}", voucherOrder.getId());
+                return true;
+            }
+            // 用户在这个订单写入之前已经在数据库降级中下单了,这个订单不会再写入,重试用完之后票据改为failed
+            log.error("用户已经有这张优惠券的其他订单,订单没有写入:{}", voucherOrder);
+            return false;
+        } catch (Exception e) {
+            log.error("订单写入失败:{}", voucherOrder, e);
+            return false;
+        }
     }
 }
@@ -7,15 +7,15 @@ import com.xavier.mapper.VoucherMapper;
 import com.xavier.entity.SeckillVoucher;
 import com.xavier.service.ISeckillVoucherService;
 import com.xavier.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.xavier.utils.SeckillLifecycle;
+import com.xavier.utils.SeckillSoldOut;
+import com.xavier.utils.SeckillStockShards;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.xavier.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -23,7 +23,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    @Resource
+    private SeckillLifecycle seckillLifecycle;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -42,10 +48,32 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setFallbackStock(voucher.getFallbackStock() == null ? 0 : voucher.getFallbackStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 将优惠券信息保存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        // 即将开始的秒杀券立即把库存和时间窗口写入redis,否则由生命周期调度在开始之前写入
+        seckillLifecycle.preloadIfDue(seckillVoucher);
+    }
+
+    /**
+     * 补充秒杀券的库存
+     * 先增加数据库中的库存,已经预热过的再拆分到redis的各个分片,最后清除所有节点的售罄标记;
+     * 还没有预热的秒杀券在预热时从数据库读取库存
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        if (!seckillVoucherService.addStock(voucherId, count)) {
+            return Result.fail("秒杀券不存在");
+        }
+        if (seckillLifecycle.isPreloaded(voucherId)) {
+            seckillStockShards.addStock(voucherId, count);
+            seckillSoldOut.reset(voucherId);
+        }
+        return Result.ok();
     }
 }
@@ -1,23 +1,24 @@
 package com.xavier.utils;
 
-import cn.hutool.core.thread.ThreadUtil;
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.xavier.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.xavier.utils.RedisConstants.*;
-import static com.xavier.utils.RedisConstants.CACHE_SHOP_TTL;
 
 @Component
 @Slf4j
@@ -25,6 +26,33 @@ public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 缓存的数据以CacheSerializer编码之后的字节数组保存
+     */
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    @Resource
+    private CacheSerializer cacheSerializer;
+
+    @Resource
+    private LocalCache localCache;
+
+    @Resource
+    private SingleFlight singleFlight;
+
+    @Resource
+    private RedisBloomFilter redisBloomFilter;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
     /**
      * 将数据设置到redis缓存中
      * @param key 设置到redis中的key
@@ -33,7 +61,25 @@ public class CacheClient {
      * @param unit  过期时间的单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        write(key, value, time, unit);
+    }
+
+    /**
+     * 编码之后写入redis
+     * @return 编码之后的数据,用来写入本地缓存
+     */
+    private byte[] write(String key, Object value, Long time, TimeUnit unit) {
+        byte[] bytes = cacheSerializer.encode(value);
+        cacheMetrics.payload(key, bytes);
+        cacheRedisTemplate.opsForValue().set(key, bytes, time, unit);
+        return bytes;
+    }
+
+    /**
+     * 写入空值,解决缓存穿透问题
+     */
+    private void setNull(String key) {
+        cacheRedisTemplate.opsForValue().set(key, new byte[0], CACHE_NULL_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -44,10 +90,103 @@ public class CacheClient {
      * @param unit  过期时间的单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData data = new RedisData();
-        data.setData(value);
-        data.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(data));
+        byte[] bytes = cacheSerializer.encodeWithExpire(value, 0, System.currentTimeMillis() + unit.toMillis(time));
+        cacheMetrics.payload(key, bytes);
+        cacheRedisTemplate.opsForValue().set(key, bytes);
+    }
+
+    /**
+     * 查询数据库之前获取的缓存版本号快照,批量写入时用来丢弃查询期间被删除过的key
+     */
+    public long[] versionSnapshot() {
+        return localCache.versionSnapshot();
+    }
+
+    /**
+     * 使用pipeline批量预热redis,过期时间加上随机的抖动,防止批量写入的数据在同一时间集中过期
+     * 只写入redis中不存在的key,已有的数据可能是查询之后更新过的,不能用预热查询到的旧数据覆盖;
+     * 查询期间被删除过的key也不写入,写入之后再检查一次,删除通知在检查和写入之间到达时把刚写入的数据删掉
+     * @param values key到数据的映射
+     * @param versions 查询数据之前通过versionSnapshot获取的版本号快照
+     * @param time 过期时间
+     * @param unit 过期时间的单位
+     */
+    public void setAll(Map<String, ?> values, long[] versions, Long time, TimeUnit unit) {
+        writeAll(values, versions, (value, ttl) -> cacheSerializer.encode(value), time, unit);
+    }
+
+    /**
+     * 以queryWithEarlyRefresh的格式批量预热redis,写入规则和setAll相同
+     * @param values key到数据的映射
+     * @param versions 查询数据之前通过versionSnapshot获取的版本号快照
+     * @param delta 查询一条数据的耗时,用于计算提前刷新的概率
+     * @param time 过期时间
+     * @param unit 过期时间的单位
+     */
+    public void setAllWithEarlyRefresh(Map<String, ?> values, long[] versions, long delta, Long time, TimeUnit unit) {
+        writeAll(values, versions, (value, ttl) -> cacheSerializer.encodeWithExpire(
+                value, delta, System.currentTimeMillis() + ttl), time, unit);
+    }
+
+    private void writeAll(Map<String, ?> values, long[] versions, BiFunction<Object, Long, byte[]> encoder,
+                          Long time, TimeUnit unit) {
+        List<String> keys = new ArrayList<>(values.size());
+        for (String key : values.keySet()) {
+            if (!localCache.isModified(key, versions)) {
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        long ttlMillis = unit.toMillis(time);
+        List<Object> results = cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                long ttl = ttlMillis + (long) (ttlMillis * CACHE_TTL_JITTER * ThreadLocalRandom.current().nextDouble());
+                byte[] bytes = encoder.apply(values.get(key), ttl);
+                cacheMetrics.payload(key, bytes);
+                connection.set(rawKey(key), bytes, Expiration.milliseconds(ttl), RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+        List<String> stale = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i)) && localCache.isModified(keys.get(i), versions)) {
+                stale.add(keys.get(i));
+            }
+        }
+        if (!stale.isEmpty()) {
+            cacheRedisTemplate.delete(stale);
+        }
+    }
+
+    /**
+     * 从redis中读取数据,无法识别格式的数据当作不存在
+     */
+    private byte[] get(String key) {
+        byte[] value = cacheRedisTemplate.opsForValue().get(key);
+        return cacheSerializer.isReadable(value) ? value : null;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * redis中存在数据并且不是空值
+     */
+    private static boolean isPresent(byte[] value) {
+        return value != null && value.length > 0;
+    }
+
+    /**
+     * 删除redis中的缓存,同时通知所有节点删除本地缓存
+     * @param key 需要删除的key
+     */
+    public void delete(String key) {
+        cacheRedisTemplate.delete(key);
+        hotKeyDetector.evict(key);
+        localCache.invalidate(key);
     }
 
     /**
@@ -64,28 +203,47 @@ public class CacheClient {
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 先查询本地缓存,命中则不需要访问redis
+        byte[] local = localCache.get(key);
+        if (local != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_LOCAL_HIT);
+            return cacheSerializer.decode(local, type);
+        }
+        long version = localCache.version(key);
+        // 布隆过滤器判断不存在,则一定不存在,不需要再访问redis和数据库
+        if (!redisBloomFilter.mightContain(keyPrefix, id)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_BLOOM_REJECTED);
+            return null;
+        }
         // 请求发送过来,需要获取店铺信息,我们先去查询redis缓存
-        String valueCache = stringRedisTemplate.opsForValue().get(key);
+        byte[] valueCache = hotKeyDetector.get(key, this::get);
         //redis中存在,直接返回
-        if (StrUtil.isNotBlank(valueCache)) {
-            // 存在后将json数据转成shop对象
-            return JSONUtil.toBean(valueCache, type);
+        if (isPresent(valueCache)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_HIT);
+            // 存在后将数据转成shop对象
+            R r = cacheSerializer.decode(valueCache, type);
+            localCache.put(key, valueCache, version);
+            return r;
         }
         // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
         if (valueCache != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_NULL_HIT);
             return null;
         }
+        cacheMetrics.request(key, CacheMetrics.RESULT_MISS);
         //redis中不存在,去查询数据库
-        R r = dbFallback.apply(id);
+        R r = cacheMetrics.load(key, () -> dbFallback.apply(id));
         //数据库中不存在,返回错误店铺不存在
         if (r == null) {
             // 解决缓存穿透问题,向redis添加空值信息
-            this.set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             return null;
         }
         //数据库中存在
         //店铺添加到redis中
-        this.set(key, r, time, unit);
+        byte[] bytes = write(key, r, time, unit);
+        cacheMetrics.rebuilt(key, 1);
+        localCache.put(key, bytes, version);
         return r;
     }
 
@@ -103,117 +261,418 @@ public class CacheClient {
      */
     public <R,ID> R queryWithMutex(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
         String key = keyPrefix + id;
-        String lock = LOCK_SHOP_KEY + id;
-        R r = null;
-        try {
-            // 请求发送过来,需要获取店铺信息,我们先去查询redis缓存
-            String valueCache = stringRedisTemplate.opsForValue().get(key);
-            //redis中存在,直接返回
-            if (StrUtil.isNotBlank(valueCache)) {
-                // 存在后将json数据转成shop对象
-                r = JSONUtil.toBean(valueCache,type);
-                return r;
-            }
-            // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
-            if (valueCache != null) {
-                return null;
-            }
-            // redis中不存在
-            // 获取锁
-            // 获取不到锁,则递归获取数据,在这里想当与等待
-            if (!tryLock(lock)) {
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix,id,type,dbFallback,time,unit);
-            }
-            // 获取到锁
-            // 进行一个DoubleCheck,以防其他的线程修改完了我们再获取
-            valueCache = stringRedisTemplate.opsForValue().get(key);
-            //redis中存在,直接返回
-            if (StrUtil.isNotBlank(valueCache)) {
-                // 存在后将json数据转成shop对象
-                r = JSONUtil.toBean(valueCache, type);
-                return r;
-            }
-            // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
-            if (valueCache != null) {
-                return null;
-            }
-            // redis中的确不存在该数据,则查询数据库
-            r = dbFallback.apply(id);
-            //数据库中不存在,返回错误店铺不存在
-            if (r == null) {
-                // 解决缓存穿透问题,向redis添加空值信息
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+        // 先查询本地缓存,命中则不需要访问redis
+        byte[] local = localCache.get(key);
+        if (local != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_LOCAL_HIT);
+            return cacheSerializer.decode(local, type);
+        }
+        long version = localCache.version(key);
+        // 布隆过滤器判断不存在,则一定不存在,不需要再访问redis和数据库
+        if (!redisBloomFilter.mightContain(keyPrefix, id)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_BLOOM_REJECTED);
+            return null;
+        }
+        // 请求发送过来,需要获取店铺信息,我们先去查询redis缓存
+        byte[] valueCache = hotKeyDetector.get(key, this::get);
+        //redis中存在,直接返回
+        if (isPresent(valueCache)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_HIT);
+            // 存在后将数据转成shop对象
+            R r = cacheSerializer.decode(valueCache, type);
+            localCache.put(key, valueCache, version);
+            return r;
+        }
+        // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
+        if (valueCache != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_NULL_HIT);
+            return null;
+        }
+        cacheMetrics.request(key, CacheMetrics.RESULT_MISS);
+        // redis中不存在,同一个key在本JVM中只让一个线程去重建,其他线程共享它的结果
+        Supplier<R> loader = () -> dbFallback.apply(id);
+        Function<byte[], R> parser = bytes -> cacheSerializer.decode(bytes, type);
+        return singleFlight.load(key, () -> rebuildWithMutex(key, parser, loader,
+                () -> loadAndSet(key, loader, time, unit, version), version), () -> loadDirectly(key, parser, loader));
+    }
+
+    /**
+     * 使用互斥锁的方式解决缓存击穿和缓存穿透的redis查询,查询的数据为一个列表
+     * @param keyPrefix 查询的key的前缀
+     * @param id 查询的key的id
+     * @param type  列表中数据的类型
+     * @param dbFallback redis中查询不到数据到数据库中进行查询的方法
+     * @param time  过期数据重新写入redis的过期时间
+     * @param unit 过期时间的单位
+     * @param <R> 列表中数据的类型
+     * @param <ID> ID的类型
+     * @return 返回数据列表
+     */
+    public <R,ID> List<R> queryListWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,List<R>> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 先查询本地缓存,命中则不需要访问redis
+        byte[] local = localCache.get(key);
+        if (local != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_LOCAL_HIT);
+            return cacheSerializer.decodeList(local, type);
+        }
+        long version = localCache.version(key);
+        // 请求发送过来,需要获取店铺信息,我们先去查询redis缓存
+        byte[] valueCache = hotKeyDetector.get(key, this::get);
+        //redis中存在,直接返回
+        if (isPresent(valueCache)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_HIT);
+            // 存在后将数据转成对象列表
+            List<R> r = cacheSerializer.decodeList(valueCache, type);
+            localCache.put(key, valueCache, version);
+            return r;
+        }
+        // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
+        if (valueCache != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_NULL_HIT);
+            return null;
+        }
+        cacheMetrics.request(key, CacheMetrics.RESULT_MISS);
+        // redis中不存在,同一个key在本JVM中只让一个线程去重建,其他线程共享它的结果
+        Supplier<List<R>> loader = () -> dbFallback.apply(id);
+        Function<byte[], List<R>> parser = bytes -> cacheSerializer.decodeList(bytes, type);
+        return singleFlight.load(key, () -> rebuildWithMutex(key, parser, loader,
+                () -> loadAndSet(key, loader, time, unit, version), version), () -> loadDirectly(key, parser, loader));
+    }
+
+    /**
+     * 获取互斥锁之后重建缓存
+     * 获取不到锁的时候不再睡眠递归,而是等待持有锁的节点重建完成后发出的通知,收到通知或者超时后重新检查redis
+     * @param key 缓存的key
+     * @param parser 将redis中的数据解码的方法
+     * @param loader 到数据库中查询数据的方法
+     * @param rebuild 获取到锁之后查询数据库并写入redis的方法
+     * @param version 查询之前本地缓存的版本号
+     * @param <T> 返回值类型
+     * @return 返回数据
+     */
+    private <T> T rebuildWithMutex(String key, Function<byte[], T> parser, Supplier<T> loader, Supplier<T> rebuild, long version) {
+        // 带有线程标识的锁,释放的时候只会释放自己的锁
+        ILock lock = new SimpleRedisLock(key, stringRedisTemplate);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        long waitStart = System.nanoTime();
+        while (true) {
+            // 先监听重建完成的通知,再去检查redis和获取锁,防止错过通知
+            CompletableFuture<Void> watcher = singleFlight.watch(key);
+            try {
+                // 进行一个DoubleCheck,以防其他的节点已经重建完了
+                byte[] valueCache = get(key);
+                if (isPresent(valueCache)) {
+                    cacheMetrics.lockWait(key, System.nanoTime() - waitStart);
+                    T r = parser.apply(valueCache);
+                    localCache.put(key, valueCache, version);
+                    return r;
+                }
+                if (valueCache != null) {
+                    cacheMetrics.lockWait(key, System.nanoTime() - waitStart);
+                    return null;
+                }
+                if (lock.tryLock(LOCK_SHOP_TTL)) {
+                    cacheMetrics.lockWait(key, System.nanoTime() - waitStart);
+                    try {
+                        return rebuild.get();
+                    } finally {
+                        // 释放锁,并唤醒其他节点上等待的线程
+                        lock.unlock();
+                        singleFlight.notifyRebuilt(key);
+                    }
+                }
+                // 等待太久了,持有锁的节点可能已经挂了,直接查询数据库保证可用
+                if (System.currentTimeMillis() > deadline) {
+                    log.warn("等待缓存重建超时,直接查询数据库:{}", key);
+                    cacheMetrics.lockWait(key, System.nanoTime() - waitStart);
+                    return cacheMetrics.load(key, loader);
+                }
+                singleFlight.awaitRebuilt(watcher, LOCK_WAIT_MILLIS);
+            } finally {
+                singleFlight.unwatch(key, watcher);
             }
-            //数据库中存在
+        }
+    }
 
-            //店铺添加到redis中
-            this.set(key,r,time,unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 释放锁
-            unlock(lock);
+    /**
+     * 等待本JVM中其他线程重建超时之后的降级:redis中已经有数据就直接使用,没有就直接查询数据库,不写入缓存
+     */
+    private <T> T loadDirectly(String key, Function<byte[], T> parser, Supplier<T> loader) {
+        byte[] valueCache = get(key);
+        if (isPresent(valueCache)) {
+            return parser.apply(valueCache);
+        }
+        if (valueCache != null) {
+            return null;
+        }
+        return cacheMetrics.load(key, loader);
+    }
+
+    /**
+     * 到数据库中查询数据并写入缓存,数据不存在时写入空值防止缓存穿透
+     */
+    private <T> T loadAndSet(String key, Supplier<T> loader, Long time, TimeUnit unit, long version) {
+        // redis中的确不存在该数据,则查询数据库
+        T r = cacheMetrics.load(key, loader);
+        //数据库中不存在,返回错误店铺不存在
+        if (r == null) {
+            // 解决缓存穿透问题,向redis添加空值信息
+            setNull(key);
+            return null;
         }
+        //数据库中存在,添加到redis中
+        byte[] bytes = write(key, r, time, unit);
+        cacheMetrics.rebuilt(key, 1);
+        localCache.put(key, bytes, version);
         return r;
     }
 
-    public <R,ID> List<R> queryListWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,List<R>> dbFallback, Long time, TimeUnit unit) {
-        String key = keyPrefix + id;
-        String lock = LOCK_SHOP_KEY + id;
-        List<R> r = null;
-        try {
-            // 请求发送过来,需要获取店铺信息,我们先去查询redis缓存
-            String valueCache = stringRedisTemplate.opsForValue().get(key);
-            //redis中存在,直接返回
-            if (StrUtil.isNotBlank(valueCache)) {
-                // 存在后将json数据转成shop对象
-                r = JSONUtil.toList(valueCache,type);
-                return r;
+    /**
+     * 批量查询,一次MGET查询redis,未命中的数据使用一次IN查询到数据库中加载,再用pipeline一次写回redis
+     * @param keyPrefix 查询的key的前缀
+     * @param ids 查询的id集合
+     * @param type 查询到的数据的类型
+     * @param dbFallback 批量到数据库中查询的方法,返回id到数据的映射,不存在的id不需要放入map中
+     * @param time 写入redis的过期时间
+     * @param unit 过期时间的单位
+     * @param <R> 返回值的类型
+     * @param <ID> ID的类型
+     * @return 与ids顺序一致的数据列表,不存在的数据对应位置为null
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                      Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        return doQueryBatch(keyPrefix, ids, (id, bytes) -> cacheSerializer.decode(bytes, type),
+                bytes -> cacheSerializer.decode(bytes, type), dbFallback, (r, delta) -> cacheSerializer.encode(r), time, unit);
+    }
+
+    /**
+     * 批量查询,数据的格式与queryWithEarlyRefresh一致,命中的数据同样会按照概率提前刷新
+     * @param keyPrefix 查询的key的前缀
+     * @param ids 查询的id集合
+     * @param type 查询到的数据的类型
+     * @param dbFallback 批量到数据库中查询的方法,返回id到数据的映射,不存在的id不需要放入map中
+     * @param time 写入redis的过期时间
+     * @param unit 过期时间的单位
+     * @param <R> 返回值的类型
+     * @param <ID> ID的类型
+     * @return 与ids顺序一致的数据列表,不存在的数据对应位置为null
+     */
+    public <R, ID> List<R> queryBatchWithEarlyRefresh(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                      Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        return doQueryBatch(keyPrefix, ids, (id, bytes) -> {
+            EarlyRefreshData data = cacheSerializer.decodeWithExpire(bytes, type);
+            refreshEarlyIfNeeded(keyPrefix + id, data,
+                    () -> dbFallback.apply(Collections.singletonList(id)).get(id), time, unit);
+            return type.cast(data.getData());
+        }, bytes -> type.cast(cacheSerializer.decodeWithExpire(bytes, type).getData()),
+                dbFallback, (r, delta) -> cacheSerializer.encodeWithExpire(
+                r, delta, System.currentTimeMillis() + unit.toMillis(time)), time, unit);
+    }
+
+    /**
+     * 批量查询的实现
+     * @param parser 将redis中的数据解码的方法,参数为id和数据
+     * @param localParser 将本地缓存中的数据解码的方法,本地缓存命中时不触发提前刷新
+     * @param encoder 将数据编码成写入redis的数据的方法,参数为数据和查询数据库的耗时
+     */
+    private <R, ID> List<R> doQueryBatch(String keyPrefix, Collection<ID> ids, BiFunction<ID, byte[], R> parser,
+                                         Function<byte[], R> localParser, Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                         BiFunction<R, Long, byte[]> encoder, Long time, TimeUnit unit) {
+        List<ID> idList = new ArrayList<>(ids);
+        List<R> result = new ArrayList<>(Collections.nCopies(idList.size(), (R) null));
+        // 本地缓存和布隆过滤器都没有结果的才需要去redis中查询
+        List<Integer> redisIndexes = new ArrayList<>();
+        List<String> redisKeys = new ArrayList<>();
+        // 查询redis之前热点key副本的版本号,和redisKeys一一对应
+        List<Long> replicaVersions = new ArrayList<>();
+        // 本地缓存未命中时的版本号,写入本地缓存时版本号变化说明期间被删除过,不能写入
+        Map<String, Long> versions = new HashMap<>();
+        for (int i = 0; i < idList.size(); i++) {
+            ID id = idList.get(i);
+            String key = keyPrefix + id;
+            byte[] local = localCache.get(key);
+            if (local != null) {
+                cacheMetrics.request(key, CacheMetrics.RESULT_LOCAL_HIT);
+                result.set(i, localParser.apply(local));
+                continue;
             }
-            // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
-            if (valueCache != null) {
-                return null;
+            versions.putIfAbsent(key, localCache.version(key));
+            if (!redisBloomFilter.mightContain(keyPrefix, id)) {
+                cacheMetrics.request(key, CacheMetrics.RESULT_BLOOM_REJECTED);
+            } else {
+                hotKeyDetector.record(key);
+                // 热点key直接使用本地副本
+                byte[] replica = hotKeyDetector.getReplica(key);
+                if (isPresent(replica)) {
+                    cacheMetrics.request(key, CacheMetrics.RESULT_HIT);
+                    R r = parser.apply(id, replica);
+                    localCache.put(key, replica, versions.get(key));
+                    result.set(i, r);
+                    continue;
+                }
+                redisIndexes.add(i);
+                redisKeys.add(key);
+                replicaVersions.add(hotKeyDetector.version(key));
             }
-            // redis中不存在
-            // 获取锁
-            // 获取不到锁,则递归获取数据,在这里想当与等待
-            if (!tryLock(lock)) {
-                Thread.sleep(50);
-                return queryListWithMutex(keyPrefix,id,type,dbFallback,time,unit);
+        }
+        if (redisKeys.isEmpty()) {
+            return result;
+        }
+        // 一次MGET查询redis
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(redisKeys);
+        // redis中没有的id,同一个id可能出现多次
+        Map<ID, List<Integer>> missIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < redisIndexes.size(); i++) {
+            int index = redisIndexes.get(i);
+            byte[] valueCache = values == null ? null : values.get(i);
+            if (!cacheSerializer.isReadable(valueCache)) {
+                valueCache = null;
             }
-            // 获取到锁
-            // 进行一个DoubleCheck,以防其他的线程修改完了我们再获取
-            valueCache = stringRedisTemplate.opsForValue().get(key);
-            //redis中存在,直接返回
-            if (StrUtil.isNotBlank(valueCache)) {
-                // 存在后将json数据转成shop对象
-                r = JSONUtil.toList(valueCache, type);
-                return r;
+            if (isPresent(valueCache)) {
+                cacheMetrics.request(redisKeys.get(i), CacheMetrics.RESULT_HIT);
+                hotKeyDetector.putReplica(redisKeys.get(i), valueCache, replicaVersions.get(i));
+                R r = parser.apply(idList.get(index), valueCache);
+                localCache.put(redisKeys.get(i), valueCache, versions.get(redisKeys.get(i)));
+                result.set(index, r);
+            } else if (valueCache == null) {
+                cacheMetrics.request(redisKeys.get(i), CacheMetrics.RESULT_MISS);
+                missIndexes.computeIfAbsent(idList.get(index), k -> new ArrayList<>()).add(index);
+            } else {
+                cacheMetrics.request(redisKeys.get(i), CacheMetrics.RESULT_NULL_HIT);
             }
-            // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
-            if (valueCache != null) {
-                return null;
+        }
+        if (missIndexes.isEmpty()) {
+            return result;
+        }
+        // 一次IN查询加载所有未命中的数据
+        long start = System.currentTimeMillis();
+        Map<ID, R> loaded = cacheMetrics.load(keyPrefix, () -> dbFallback.apply(missIndexes.keySet()));
+        long delta = System.currentTimeMillis() - start;
+        Map<ID, R> found = loaded == null ? Collections.emptyMap() : loaded;
+        Map<ID, byte[]> encoded = new HashMap<>();
+        // 使用pipeline一次写回redis,数据库中不存在的写入空值防止缓存穿透
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIndexes.keySet()) {
+                R r = found.get(id);
+                if (r == null) {
+                    connection.setEx(rawKey(keyPrefix + id), TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), new byte[0]);
+                } else {
+                    byte[] bytes = encoder.apply(r, delta);
+                    encoded.put(id, bytes);
+                    cacheMetrics.payload(keyPrefix, bytes);
+                    connection.setEx(rawKey(keyPrefix + id), unit.toSeconds(time), bytes);
+                }
             }
-            // redis中的确不存在该数据,则查询数据库
-            r = dbFallback.apply(id);
-            //数据库中不存在,返回错误店铺不存在
-            if (r == null) {
-                // 解决缓存穿透问题,向redis添加空值信息
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+            return null;
+        });
+        cacheMetrics.rebuilt(keyPrefix, found.size());
+        missIndexes.forEach((id, indexes) -> {
+            R r = found.get(id);
+            localCache.put(keyPrefix + id, encoded.get(id), versions.get(keyPrefix + id));
+            indexes.forEach(index -> result.set(index, r));
+        });
+        return result;
+    }
+
+    /**
+     * 使用概率提前刷新(XFetch)的方式解决缓存集中过期的redis查询
+     * redis中同时保存数据、上一次重建的耗时以及过期时间,越接近过期时间,请求触发后台提前刷新的概率越大,
+     * 热点数据基本会在过期之前被刷新,不会在同一时间集中失效;真正过期之后按照互斥锁的方式重建
+     * @param keyPrefix 查询的key的前缀
+     * @param id 查询的key的id
+     * @param type 查询到的数据的类型
+     * @param dbFallback redis中查询不到数据到数据库中进行查询的方法
+     * @param time 过期时间
+     * @param unit 过期时间的单位
+     * @param <R> 返回值的类型
+     * @param <ID> ID的类型
+     * @return 返回数据
+     */
+    public <R, ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 先查询本地缓存,命中则不需要访问redis
+        byte[] local = localCache.get(key);
+        if (local != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_LOCAL_HIT);
+            return type.cast(cacheSerializer.decodeWithExpire(local, type).getData());
+        }
+        long version = localCache.version(key);
+        // 布隆过滤器判断不存在,则一定不存在,不需要再访问redis和数据库
+        if (!redisBloomFilter.mightContain(keyPrefix, id)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_BLOOM_REJECTED);
+            return null;
+        }
+        Supplier<R> loader = () -> dbFallback.apply(id);
+        Function<byte[], R> parser = bytes -> {
+            EarlyRefreshData data = cacheSerializer.decodeWithExpire(bytes, type);
+            // 按照概率判断是否需要提前刷新
+            refreshEarlyIfNeeded(key, data, loader, time, unit);
+            return type.cast(data.getData());
+        };
+        byte[] valueCache = hotKeyDetector.get(key, this::get);
+        if (isPresent(valueCache)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_HIT);
+            R r = parser.apply(valueCache);
+            localCache.put(key, valueCache, version);
+            return r;
+        }
+        // 判断命中的是否为空值,空值则直接返回fail了(即为空值缓存)
+        if (valueCache != null) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_NULL_HIT);
+            return null;
+        }
+        cacheMetrics.request(key, CacheMetrics.RESULT_MISS);
+        // redis中已经过期了,同一个key在本JVM中只让一个线程去重建,其他线程共享它的结果
+        return singleFlight.load(key, () -> rebuildWithMutex(
+                key, parser, loader, () -> loadAndSetWithEarlyRefresh(key, loader, time, unit, version), version),
+                () -> loadDirectly(key, parser, loader));
+    }
+
+    /**
+     * XFetch算法: now - delta * beta * ln(random) >= expireAt 时提前刷新
+     * ln(random)为负数,重建耗时越长、越接近过期时间,越容易触发刷新
+     */
+    private <T> void refreshEarlyIfNeeded(String key, EarlyRefreshData data, Supplier<T> loader, Long time, TimeUnit unit) {
+        if (data.getExpireAt() == null || data.getDelta() == null) {
+            return;
+        }
+        double gap = -data.getDelta() * XFETCH_BETA * Math.log(ThreadLocalRandom.current().nextDouble());
+        if (System.currentTimeMillis() + gap < data.getExpireAt()) {
+            return;
+        }
+        cacheRebuildExecutor.submit(key, () -> {
+            // 其他节点正在刷新则放弃
+            ILock lock = new SimpleRedisLock(key, stringRedisTemplate);
+            if (!lock.tryLock(LOCK_SHOP_TTL)) {
+                return;
             }
-            //数据库中存在
+            try {
+                loadAndSetWithEarlyRefresh(key, loader, time, unit, localCache.version(key));
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
 
-            //店铺添加到redis中
-            this.set(key,r,time,unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 释放锁
-            unlock(lock);
+    /**
+     * 查询数据库并记录耗时,连同过期时间一起写入redis
+     */
+    private <T> T loadAndSetWithEarlyRefresh(String key, Supplier<T> loader, Long time, TimeUnit unit, long version) {
+        long start = System.currentTimeMillis();
+        T r = cacheMetrics.load(key, loader);
+        long delta = System.currentTimeMillis() - start;
+        //数据库中不存在
+        if (r == null) {
+            // 解决缓存穿透问题,向redis添加空值信息
+            setNull(key);
+            return null;
         }
+        byte[] bytes = cacheSerializer.encodeWithExpire(r, delta, System.currentTimeMillis() + unit.toMillis(time));
+        cacheMetrics.payload(key, bytes);
+        cacheRedisTemplate.opsForValue().set(key, bytes, time, unit);
+        cacheMetrics.rebuilt(key, 1);
+        localCache.put(key, bytes, version);
         return r;
     }
 
@@ -231,67 +690,50 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        String lockKey = LOCK_SHOP_KEY + id;
         // 请求发送过来,需要获取店铺信息,我们先去查询redis缓存
-        String valueCache = stringRedisTemplate.opsForValue().get(key);
+        byte[] valueCache = hotKeyDetector.get(key, this::get);
         // redis中不存在,直接返回null值,不需要去数据库查询的,
         // 因为一般使用这种方式的都是提前预热将数据加载到redis中的,如果没有查到说明不在本活动中
-        if (StrUtil.isBlank(valueCache)) {
+        if (!isPresent(valueCache)) {
+            cacheMetrics.request(key, CacheMetrics.RESULT_MISS);
             return null;
         }
-        // redis中存在,将redis中json转成实体对象
-        RedisData redisData = JSONUtil.toBean(valueCache, RedisData.class);
-        // 查看过期时间
-        LocalDateTime cacheExpireTime = redisData.getExpireTime();
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        cacheMetrics.request(key, CacheMetrics.RESULT_HIT);
+        // redis中存在,数据和过期时间一次解码出来
+        EarlyRefreshData data = cacheSerializer.decodeWithExpire(valueCache, type);
+        R r = type.cast(data.getData());
         // 判断是否过期
-        if (LocalDateTime.now().isBefore(cacheExpireTime)) {
+        if (System.currentTimeMillis() < data.getExpireAt()) {
             // 未过期,直接返回店铺信息
             return r;
         }
-        // 过期,需要缓存重建
-        if (tryLock(lockKey)) {
-            try {
-                // 获取锁之后进行一个DoubleCheck
-                valueCache = stringRedisTemplate.opsForValue().get(key);
-                redisData = JSONUtil.toBean(valueCache, RedisData.class);
-                if (LocalDateTime.now().isBefore(redisData.getExpireTime())) {
-                    data = (JSONObject) redisData.getData();
-                    r = JSONUtil.toBean(data, type);
-                    return r;
-                }
-                // doubleCheck失败,redis中确实过期了,开启独立线程,需要这个这进行缓存重建
-                ThreadUtil.execAsync(() -> {
-                    R value = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,value, time, unit);
-                });
-            } finally {
-                // 释放锁
-                unlock(lockKey);
-            }
-        }
-        //没获取到锁,直接返回旧的店铺信息
+        // 过期,提交到后台重建线程池,同一个key在本节点只会有一个重建任务,直接返回旧的店铺信息
+        cacheRebuildExecutor.submit(key, () -> rebuildWithLogicalExpire(key, type, () -> dbFallback.apply(id), time, unit));
         return r;
     }
 
     /**
-     * 获取锁,使用redis中的setnx功能,如果redis中已经存在该键则返回false,不存在则创建并返回true
-     *
-     * @param key 保存在redis中的key
-     * @return 返回boolean表示是否获取到了锁
-     */
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    /**
-     * 释放锁
-     *
-     * @param key 释放的锁的key
+     * 逻辑过期数据的重建任务,在后台线程中执行
+     * 获取锁防止多个节点同时重建,获取锁之后再检查一次是否已经被其他节点重建过了
      */
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    private void rebuildWithLogicalExpire(String key, Class<?> type, Supplier<Object> loader, Long time, TimeUnit unit) {
+        ILock lock = new SimpleRedisLock(key, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_SHOP_TTL)) {
+            return;
+        }
+        try {
+            // 获取锁之后进行一个DoubleCheck
+            byte[] valueCache = get(key);
+            if (isPresent(valueCache)
+                    && System.currentTimeMillis() < cacheSerializer.decodeWithExpire(valueCache, type).getExpireAt()) {
+                return;
+            }
+            // doubleCheck失败,redis中确实过期了,进行缓存重建
+            this.setWithLogicalExpire(key, cacheMetrics.load(key, loader), time, unit);
+            cacheMetrics.rebuilt(key, 1);
+        } finally {
+            // 释放锁
+            lock.unlock();
+        }
     }
 }
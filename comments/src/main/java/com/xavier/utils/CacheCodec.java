@@ -0,0 +1,36 @@
+package com.xavier.utils;
+
+import java.util.List;
+
+/**
+ * 缓存数据的编解码器
+ * 写入redis的数据第一个字节是编解码器的版本号,读取的时候根据版本号选择对应的编解码器,
+ * 所以滚动发布的过程中新旧两种格式可以同时存在
+ */
+public interface CacheCodec {
+    /**
+     * 版本号,写在每条数据的第一个字节,不能与json的首字符冲突,一旦使用不能修改
+     */
+    byte version();
+
+    /**
+     * 编码器的名称,对应配置comments.cache.codec
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    /**
+     * 数据是否可以被当前的编解码器读取,不能读取的数据按照未命中处理
+     */
+    default boolean isReadable(byte[] bytes, int offset) {
+        return true;
+    }
+
+    /**
+     * 从offset开始解码
+     */
+    <T> T decode(byte[] bytes, int offset, Class<T> type);
+
+    <T> List<T> decodeList(byte[] bytes, int offset, Class<T> type);
+}
@@ -0,0 +1,141 @@
+package com.xavier.utils;
+
+import io.micrometer.core.instrument.*;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 缓存的监控指标,通过actuator的/actuator/metrics暴露
+ * 所有指标都带有prefix标签,值为key去掉末尾id之后的前缀,例如cache:shop:1对应cache:shop:
+ */
+@Component
+public class CacheMetrics {
+    public static final String RESULT_LOCAL_HIT = "local_hit";
+    public static final String RESULT_HIT = "hit";
+    public static final String RESULT_NULL_HIT = "null_hit";
+    public static final String RESULT_BLOOM_REJECTED = "bloom_rejected";
+    public static final String RESULT_MISS = "miss";
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        // 后台重建线程池的状态
+        Gauge.builder("cache.rebuild.executor.queue", cacheRebuildExecutor, CacheRebuildExecutor::getQueueDepth)
+                .description("等待执行的重建任务数").register(meterRegistry);
+        Gauge.builder("cache.rebuild.executor.active", cacheRebuildExecutor, CacheRebuildExecutor::getActiveCount)
+                .description("正在执行的重建任务数").register(meterRegistry);
+        Gauge.builder("cache.rebuild.executor.pending.keys", cacheRebuildExecutor, CacheRebuildExecutor::getPendingKeys)
+                .description("已提交还未完成的key").register(meterRegistry);
+        Gauge.builder("cache.rebuild.executor.latency.max", cacheRebuildExecutor, CacheRebuildExecutor::getMaxLatencyMillis)
+                .baseUnit("milliseconds").register(meterRegistry);
+        taskCounter("submitted", CacheRebuildExecutor::getSubmitted);
+        taskCounter("deduplicated", CacheRebuildExecutor::getDeduplicated);
+        taskCounter("rejected", CacheRebuildExecutor::getRejected);
+        taskCounter("succeeded", CacheRebuildExecutor::getSucceeded);
+        taskCounter("failed", CacheRebuildExecutor::getFailed);
+        taskCounter("timed_out", CacheRebuildExecutor::getTimedOut);
+        Gauge.builder("cache.hot.keys", hotKeyDetector, h -> h.getHotKeys().size())
+                .description("当前的热点key数量").register(meterRegistry);
+    }
+
+    private void taskCounter(String result, ToDoubleFunction<CacheRebuildExecutor> f) {
+        FunctionCounter.builder("cache.rebuild.executor.tasks", cacheRebuildExecutor, f)
+                .tag("result", result).register(meterRegistry);
+    }
+
+    /**
+     * 记录一次查询的结果
+     * @param key 查询的key
+     * @param result 查询结果,RESULT_开头的常量
+     */
+    public void request(String key, String result) {
+        String prefix = prefixOf(key);
+        counters.computeIfAbsent("cache.requests|" + prefix + "|" + result, k -> Counter.builder("cache.requests")
+                .tag("prefix", prefix).tag("result", result).register(meterRegistry)).increment();
+    }
+
+    /**
+     * 记录一次缓存的重建,即从数据库加载之后写回redis
+     */
+    public void rebuilt(String key, int count) {
+        String prefix = prefixOf(key);
+        counters.computeIfAbsent("cache.rebuilds|" + prefix, k -> Counter.builder("cache.rebuilds")
+                .tag("prefix", prefix).register(meterRegistry)).increment(count);
+    }
+
+    /**
+     * 记录写入redis的数据大小
+     */
+    public void payload(String key, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        String prefix = prefixOf(key);
+        summaries.computeIfAbsent(prefix, k -> DistributionSummary.builder("cache.payload.size")
+                .tag("prefix", prefix).baseUnit("bytes")
+                .publishPercentiles(0.5, 0.95, 0.99).register(meterRegistry)).record(value.length);
+    }
+
+    /**
+     * 记录等待互斥锁的时间
+     */
+    public void lockWait(String key, long nanos) {
+        timer("cache.lock.wait", key).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 查询数据库并记录耗时
+     */
+    public <T> T load(String key, Supplier<T> loader) {
+        long start = System.nanoTime();
+        try {
+            return loader.get();
+        } finally {
+            timer("cache.load", key).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer timer(String name, String key) {
+        String prefix = prefixOf(key);
+        return timers.computeIfAbsent(name + "|" + prefix, k -> Timer.builder(name)
+                .tag("prefix", prefix)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    /**
+     * 去掉key末尾的数字id得到前缀,防止标签的取值无限增长
+     */
+    static String prefixOf(String key) {
+        int i = key.lastIndexOf(':');
+        if (i < 0 || i == key.length() - 1) {
+            return key;
+        }
+        for (int j = i + 1; j < key.length(); j++) {
+            if (!Character.isDigit(key.charAt(j))) {
+                return key;
+            }
+        }
+        return key.substring(0, i + 1);
+    }
+}
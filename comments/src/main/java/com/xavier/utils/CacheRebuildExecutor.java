@@ -0,0 +1,247 @@
+package com.xavier.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 逻辑过期缓存的后台重建线程池
+ * 线程数和队列长度都有上限,同一个key同时只会有一个重建任务,
+ * 每次重建从开始执行时计算超时时间,超时之后中断重建线程,失败后按指数退避重试,并记录队列长度和重建耗时等指标;
+ * jdbc查询不响应中断,超时的重建要等它真正返回之后才会重试,避免同一个key同时有多个查询压在数据库上
+ */
+@Component
+@Slf4j
+public class CacheRebuildExecutor {
+
+    @Value("${comments.cache.rebuild.threads:4}")
+    private int threads;
+
+    @Value("${comments.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${comments.cache.rebuild.timeout-millis:5000}")
+    private long timeoutMillis;
+
+    @Value("${comments.cache.rebuild.max-retries:2}")
+    private int maxRetries;
+
+    @Value("${comments.cache.rebuild.backoff-millis:200}")
+    private long backoffMillis;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 用于超时检测以及延迟重试
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 正在重建(包括排队和等待重试)的key
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> newThread(r, "cache-rebuild-" + count.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "cache-rebuild-scheduler"));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交一个重建任务
+     * @param key 重建的缓存key,同一个key正在重建时不会重复提交
+     * @param task 重建任务
+     * @return 是否提交成功,重复或者队列已满时返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pending.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        submitted.increment();
+        execute(key, task, 0);
+        return true;
+    }
+
+    private void execute(String key, Runnable task, int attempt) {
+        try {
+            executor.execute(() -> run(key, task, attempt));
+        } catch (RejectedExecutionException e) {
+            // 队列已满,放弃这次重建,请求继续返回旧数据
+            rejected.increment();
+            pending.remove(key);
+            log.warn("缓存重建队列已满,放弃重建:{}", key);
+        }
+    }
+
+    private void run(String key, Runnable task, int attempt) {
+        // 排队的时间不算在超时时间内
+        Attempt current = new Attempt(Thread.currentThread());
+        ScheduledFuture<?> timeout = null;
+        try {
+            timeout = scheduler.schedule(current::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // 正在关闭,不再检测超时
+        }
+        long start = System.currentTimeMillis();
+        Throwable error = null;
+        try {
+            task.run();
+        } catch (Throwable e) {
+            error = e;
+        }
+        boolean expired = current.finish();
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (error == null) {
+            // 超时被中断之后仍然完成了重建,不需要重试
+            if (expired) {
+                log.warn("缓存重建超时之后完成,耗时{}ms:{}", System.currentTimeMillis() - start, key);
+            }
+            recordLatency(System.currentTimeMillis() - start);
+            succeeded.increment();
+            pending.remove(key);
+            return;
+        }
+        if (expired) {
+            TimeoutException timeoutException = new TimeoutException("缓存重建超时");
+            timeoutException.initCause(error);
+            error = timeoutException;
+        }
+        onFailure(key, task, attempt, error);
+    }
+
+    private void onFailure(String key, Runnable task, int attempt, Throwable e) {
+        if (attempt < maxRetries) {
+            long delay = backoffMillis << attempt;
+            log.warn("缓存重建失败,{}ms后第{}次重试:{}", delay, attempt + 1, key, e);
+            try {
+                scheduler.schedule(() -> execute(key, task, attempt + 1), delay, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ignored) {
+                // 正在关闭,不再重试
+            }
+        }
+        failed.increment();
+        pending.remove(key);
+        log.error("缓存重建失败:{}", key, e);
+    }
+
+    private void recordLatency(long latency) {
+        totalLatencyMillis.add(latency);
+        maxLatencyMillis.accumulateAndGet(latency, Math::max);
+    }
+
+    /**
+     * 一次正在执行的重建,超时只中断这一次重建,不能中断线程池中这个线程之后执行的其他任务
+     */
+    private class Attempt {
+        private final Thread thread;
+        private boolean finished;
+        private boolean expired;
+
+        Attempt(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void expire() {
+            if (!finished) {
+                expired = true;
+                timedOut.increment();
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * 在重建线程中调用,清除超时留下的中断标记
+         * @return 这次重建是否超时
+         */
+        synchronized boolean finish() {
+            finished = true;
+            Thread.interrupted();
+            return expired;
+        }
+    }
+
+    private static Thread newThread(Runnable r, String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getPendingKeys() {
+        return pending.size();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * 成功重建的平均耗时
+     */
+    public double getAverageLatencyMillis() {
+        long count = succeeded.sum();
+        return count == 0 ? 0 : (double) totalLatencyMillis.sum() / count;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+}
@@ -0,0 +1,154 @@
+package com.xavier.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * 缓存数据的序列化
+ * 写入的格式为: 1字节版本号 + 编解码器的数据,
+ * 带过期时间的数据为: 1字节版本号(带有EXPIRE_FLAG标记) + 8字节重建耗时 + 8字节过期时间戳 + 编解码器的数据
+ * 读取的时候根据版本号选择编解码器;第一个字节是json的起始字符的,按照以前直接写入的json格式读取
+ */
+@Component
+public class CacheSerializer {
+    private static final int EXPIRE_HEADER_LENGTH = 1 + 8 + 8;
+
+    /**
+     * 带过期时间的数据在版本号上加上的标记
+     */
+    private static final int EXPIRE_FLAG = 0x40;
+
+    @Resource
+    private List<CacheCodec> codecs;
+
+    /**
+     * 写入时使用的编解码器,滚动发布时先保持旧节点能读取的格式,全部发布完成后再切换
+     */
+    @Value("${comments.cache.codec:kryo}")
+    private String codecName;
+
+    private final CacheCodec[] readers = new CacheCodec[EXPIRE_FLAG];
+
+    private CacheCodec writer;
+
+    @PostConstruct
+    private void init() {
+        for (CacheCodec codec : codecs) {
+            if (codec.version() <= 0 || codec.version() >= EXPIRE_FLAG) {
+                throw new IllegalStateException("缓存编解码器的版本号必须在1~63之间:" + codec.version());
+            }
+            if (readers[codec.version()] != null) {
+                throw new IllegalStateException("缓存编解码器的版本号重复:" + codec.version());
+            }
+            readers[codec.version()] = codec;
+            if (codec.name().equals(codecName)) {
+                writer = codec;
+            }
+        }
+        if (writer == null) {
+            throw new IllegalStateException("不存在的缓存编解码器:" + codecName);
+        }
+    }
+
+    public byte[] encode(Object value) {
+        byte[] payload = writer.encode(value);
+        byte[] bytes = new byte[payload.length + 1];
+        bytes[0] = writer.version();
+        System.arraycopy(payload, 0, bytes, 1, payload.length);
+        return bytes;
+    }
+
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        CacheCodec codec = readerOf(bytes);
+        if (codec == null) {
+            return JSONUtil.toBean(legacyJson(bytes), type);
+        }
+        return codec.decode(bytes, 1, type);
+    }
+
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        CacheCodec codec = readerOf(bytes);
+        if (codec == null) {
+            return JSONUtil.toList(legacyJson(bytes), type);
+        }
+        return codec.decodeList(bytes, 1, type);
+    }
+
+    /**
+     * 编码带过期时间的数据,用于逻辑过期和提前刷新
+     * @param delta 重建的耗时(毫秒)
+     * @param expireAt 过期的时间戳(毫秒)
+     */
+    public byte[] encodeWithExpire(Object value, long delta, long expireAt) {
+        byte[] payload = writer.encode(value);
+        return ByteBuffer.allocate(EXPIRE_HEADER_LENGTH + payload.length)
+                .put((byte) (writer.version() | EXPIRE_FLAG))
+                .putLong(delta)
+                .putLong(expireAt)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * 解码带过期时间的数据,以前的EarlyRefreshData和RedisData的json格式也可以读取
+     * @return data已经转换成type类型的EarlyRefreshData
+     */
+    public <T> EarlyRefreshData decodeWithExpire(byte[] bytes, Class<T> type) {
+        EarlyRefreshData result = new EarlyRefreshData();
+        CacheCodec codec = readerOf(bytes);
+        if (codec != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, EXPIRE_HEADER_LENGTH - 1);
+            result.setDelta(buffer.getLong());
+            result.setExpireAt(buffer.getLong());
+            result.setData(codec.decode(bytes, EXPIRE_HEADER_LENGTH, type));
+            return result;
+        }
+        JSONObject json = JSONUtil.parseObj(legacyJson(bytes));
+        result.setData(JSONUtil.toBean(json.getJSONObject("data"), type));
+        if (json.containsKey("expireAt")) {
+            // 提前刷新的格式
+            result.setDelta(json.getLong("delta"));
+            result.setExpireAt(json.getLong("expireAt"));
+        } else {
+            // 逻辑过期的格式
+            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+            result.setDelta(0L);
+            result.setExpireAt(redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        return result;
+    }
+
+    /**
+     * 数据是否可以读取,其他版本写入的无法识别的数据需要按照未命中处理,重新加载之后覆盖
+     * @param bytes redis中的数据,空值和null都可以读取
+     */
+    public boolean isReadable(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return true;
+        }
+        CacheCodec codec = readerOf(bytes);
+        if (codec != null) {
+            return codec.isReadable(bytes, (bytes[0] & EXPIRE_FLAG) == 0 ? 1 : EXPIRE_HEADER_LENGTH);
+        }
+        return bytes[0] == '{' || bytes[0] == '[' || bytes[0] == '"';
+    }
+
+    private CacheCodec readerOf(byte[] bytes) {
+        int version = bytes[0] & ~EXPIRE_FLAG;
+        // json的起始字符'{' '[' '"'都不在版本号的范围内
+        return version > 0 && version < EXPIRE_FLAG ? readers[version] : null;
+    }
+
+    private String legacyJson(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,343 @@
+package com.xavier.utils;
+
+import com.xavier.entity.Blog;
+import com.xavier.entity.Shop;
+import com.xavier.entity.ShopType;
+import com.xavier.mapper.BlogMapper;
+import com.xavier.mapper.ShopMapper;
+import com.xavier.mapper.ShopTypeMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.xavier.utils.RedisConstants.*;
+
+/**
+ * 缓存预热
+ * 启动时以及每天定时将店铺、店铺类型、店铺的地理位置、秒杀库存以及热门博客并行加载到redis中,
+ * 店铺使用流式查询分批加载,每一批使用pipeline一次写入redis;预热完成之前readiness探针不会通过,
+ * 启动时失败的任务按照退避时间重试,重试max-attempts次仍然失败的不再阻塞readiness,失败的任务在健康检查的详情中展示
+ */
+@Slf4j
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class CacheWarmer implements ApplicationRunner {
+    public static final String STATUS_WAITING = "WAITING";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+    public static final String STATUS_FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private SeckillLifecycle seckillLifecycle;
+
+    @Value("${comments.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${comments.warm-up.threads:4}")
+    private int threads;
+
+    /**
+     * 流式查询时每一批的数据量
+     */
+    @Value("${comments.warm-up.chunk-size:500}")
+    private int chunkSize;
+
+    /**
+     * 预热点赞数最多的前多少条博客
+     */
+    @Value("${comments.warm-up.hot-blog-count:100}")
+    private int hotBlogCount;
+
+    /**
+     * 启动时每一项任务最多执行的次数
+     */
+    @Value("${comments.warm-up.max-attempts:3}")
+    private int maxAttempts;
+
+    /**
+     * 第一次重试之前等待的时间,之后每次翻倍
+     */
+    @Value("${comments.warm-up.retry-backoff-millis:2000}")
+    private long retryBackoffMillis;
+
+    private ExecutorService executor;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * 启动时的预热是否已经结束,全部成功或者重试次数用完
+     */
+    private volatile boolean warmedUp;
+
+    /**
+     * 最近一次预热失败的任务
+     */
+    private volatile Set<String> failedTasks = Collections.emptySet();
+
+    /**
+     * 每一项预热任务的进度
+     */
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "cache-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            warmedUp = true;
+            return;
+        }
+        Collection<String> failed = warmUp(tasks().keySet());
+        long backoff = retryBackoffMillis;
+        for (int attempt = 1; attempt < maxAttempts && !failed.isEmpty(); attempt++) {
+            log.warn("缓存预热任务{}失败,{}ms后第{}次重试", failed, backoff, attempt);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff *= 2;
+            failed = warmUp(failed);
+        }
+        if (!failed.isEmpty()) {
+            // 缓存没有预热也能从数据库加载,不能因为预热一直失败就不接收流量
+            log.error("缓存预热任务{}重试之后仍然失败,不再等待预热", failed);
+        }
+        warmedUp = true;
+    }
+
+    /**
+     * 定时重新预热,刷新店铺的地理位置并补充已经过期的数据
+     */
+    @Scheduled(cron = "${comments.warm-up.cron:0 30 3 * * ?}")
+    public void scheduledWarmUp() {
+        if (enabled) {
+            warmUp();
+        }
+    }
+
+    /**
+     * 并行执行所有的预热任务,等待全部完成
+     * @return 是否全部成功
+     */
+    public boolean warmUp() {
+        return warmUp(tasks().keySet()).isEmpty();
+    }
+
+    private Map<String, Runnable> tasks() {
+        Map<String, Runnable> tasks = new LinkedHashMap<>();
+        tasks.put("shop", this::warmUpShops);
+        tasks.put("shopType", this::warmUpShopTypes);
+        tasks.put("seckillStock", this::warmUpSeckillStock);
+        tasks.put("hotBlog", this::warmUpHotBlogs);
+        return tasks;
+    }
+
+    /**
+     * 并行执行指定的预热任务,等待全部完成
+     * @param names 任务的名称
+     * @return 失败的任务,已经有预热在进行中时返回全部任务
+     */
+    private Collection<String> warmUp(Collection<String> names) {
+        if (!running.compareAndSet(false, true)) {
+            log.info("缓存预热正在进行中");
+            return names;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            Map<String, Runnable> tasks = tasks();
+            Map<String, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+            for (String name : names) {
+                progress.put(name, new Progress());
+                futures.put(name, CompletableFuture.supplyAsync(() -> runTask(name, tasks.get(name)), executor));
+            }
+            Set<String> failed = new LinkedHashSet<>();
+            futures.forEach((name, future) -> {
+                if (!future.join()) {
+                    failed.add(name);
+                }
+            });
+            failedTasks = failed;
+            log.info("缓存预热{},耗时{}ms,{}", failed.isEmpty() ? "完成" : "失败", System.currentTimeMillis() - start, progress);
+            return failed;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private boolean runTask(String name, Runnable task) {
+        Progress p = progressOf(name);
+        p.setStatus(STATUS_RUNNING);
+        long start = System.currentTimeMillis();
+        try {
+            task.run();
+            p.setStatus(STATUS_DONE);
+            return true;
+        } catch (Exception e) {
+            log.error("缓存预热任务失败:{}", name, e);
+            p.setStatus(STATUS_FAILED);
+            p.setError(e.getMessage());
+            return false;
+        } finally {
+            p.setElapsedMillis(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 流式查询所有店铺,分批写入店铺缓存,同时按照类型写入地理位置
+     * 店铺缓存只补充不存在的key,不覆盖查询之后更新过的数据;
+     * 地理位置先写入临时key,全部写完之后再替换,已经删除的店铺会从地理位置中清除
+     */
+    public void warmUpShops() {
+        Progress p = progressOf("shop");
+        // 流式查询可能持续很久,在查询开始之前获取版本号
+        long[] versions = cacheClient.versionSnapshot();
+        Set<Long> typeIds = new HashSet<>();
+        List<Shop> chunk = new ArrayList<>(chunkSize);
+        long[] chunkStart = {System.currentTimeMillis()};
+        shopMapper.streamAllShops(context -> {
+            chunk.add(context.getResultObject());
+            if (chunk.size() >= chunkSize) {
+                writeShops(chunk, versions, typeIds, System.currentTimeMillis() - chunkStart[0], p);
+                chunk.clear();
+                chunkStart[0] = System.currentTimeMillis();
+            }
+        });
+        writeShops(chunk, versions, typeIds, System.currentTimeMillis() - chunkStart[0], p);
+        for (Long typeId : typeIds) {
+            stringRedisTemplate.rename(SHOP_GEO_KEY + typeId + ":warm", SHOP_GEO_KEY + typeId);
+        }
+    }
+
+    private void writeShops(List<Shop> shops, long[] versions, Set<Long> typeIds, long chunkMillis, Progress p) {
+        if (shops.isEmpty()) {
+            return;
+        }
+        Map<String, Shop> values = new HashMap<>();
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        // 用这一批数据平均每条的查询耗时作为提前刷新的耗时
+        cacheClient.setAllWithEarlyRefresh(values, versions, Math.max(1, chunkMillis / shops.size()), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                // 第一次写入这个类型的时候删掉上次残留的临时key
+                if (typeIds.add(shop.getTypeId())) {
+                    conn.del(SHOP_GEO_KEY + shop.getTypeId() + ":warm");
+                }
+                conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId() + ":warm",
+                        new Point(shop.getX(), shop.getY()), shop.getId().toString());
+            }
+            return null;
+        });
+        p.add(shops.size());
+        log.debug("店铺预热进度:{}", p.getLoaded());
+    }
+
+    public void warmUpShopTypes() {
+        List<ShopType> shopTypes = shopTypeMapper.getShopList();
+        if (shopTypes != null && !shopTypes.isEmpty()) {
+            cacheClient.set(CACHE_SHOP_LIST_KEY, shopTypes, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            progressOf("shopType").add(shopTypes.size());
+        }
+    }
+
+    /**
+     * 预热即将开始以及正在进行的秒杀券的库存和时间窗口,更晚开始的由生命周期调度在开始之前预热
+     */
+    public void warmUpSeckillStock() {
+        progressOf("seckillStock").add(seckillLifecycle.preloadDue());
+    }
+
+    public void warmUpHotBlogs() {
+        long[] versions = cacheClient.versionSnapshot();
+        List<Blog> blogs = blogMapper.queryBolgOrderByHot(0, hotBlogCount);
+        Map<String, Blog> values = new HashMap<>();
+        for (Blog blog : blogs) {
+            values.put(CACHE_BLOG_KEY + blog.getId(), blog);
+        }
+        cacheClient.setAll(values, versions, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        progressOf("hotBlog").add(blogs.size());
+    }
+
+    private Progress progressOf(String name) {
+        return progress.computeIfAbsent(name, k -> new Progress());
+    }
+
+    public boolean isWarmedUp() {
+        return warmedUp;
+    }
+
+    public Set<String> getFailedTasks() {
+        return failedTasks;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public Map<String, Progress> getProgress() {
+        return progress;
+    }
+
+    @Data
+    public static class Progress {
+        private volatile String status = STATUS_WAITING;
+        private volatile long loaded;
+        private volatile long elapsedMillis;
+        private volatile String error;
+
+        private synchronized void add(long count) {
+            loaded += count;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.xavier.utils;
+
+import lombok.Data;
+
+@Data
+public class EarlyRefreshData {
+    private Object data;
+    /**
+     * 上一次重建缓存的耗时(毫秒)
+     */
+    private Long delta;
+    /**
+     * 过期的时间戳(毫秒)
+     */
+    private Long expireAt;
+}
@@ -0,0 +1,304 @@
+package com.xavier.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.xavier.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.xavier.utils.RedisConstants.HOT_KEY_CHANNEL;
+
+/**
+ * 热点key探测
+ * 对redis的访问按照采样率抽样计数,每个统计窗口结束时估算每个key的访问速率,
+ * 超过阈值的key会通过发布订阅通知所有节点升级为热点key,热点key的数据在每个节点本地保存一份短时间的副本,
+ * 读请求直接读本地副本,不再集中打到redis的同一个分片上;访问量降下来之后再通知所有节点降级
+ */
+@Component
+@Slf4j
+public class HotKeyDetector implements MessageListener {
+    @javax.annotation.Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @javax.annotation.Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 采样率,0~1
+     */
+    @Value("${comments.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+
+    /**
+     * 单个节点上每秒访问多少次算作热点key
+     */
+    @Value("${comments.cache.hot-key.threshold:1000}")
+    private double threshold;
+
+    /**
+     * 统计窗口的长度
+     */
+    @Value("${comments.cache.hot-key.window-millis:1000}")
+    private long windowMillis;
+
+    /**
+     * 本地副本的过期时间
+     */
+    @Value("${comments.cache.hot-key.replica-ttl-millis:2000}")
+    private long replicaTtlMillis;
+
+    /**
+     * 连续多少个窗口低于阈值的一半才降级
+     */
+    @Value("${comments.cache.hot-key.demote-windows:3}")
+    private int demoteWindows;
+
+    /**
+     * 当前窗口的采样计数
+     */
+    private volatile ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 所有节点公认的热点key
+     */
+    private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 由本节点探测并负责续期和降级的热点key,以及连续低于阈值的窗口数
+     */
+    private final Map<String, Integer> ownedHotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 热点key在本地的副本
+     */
+    private TimedCache<String, Object> replicas;
+
+    /**
+     * 本地副本的版本号,和LocalCache一样按照key的hash分段,删除副本时递增
+     */
+    private static final int VERSION_STRIPES = 4096;
+
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        replicas = CacheUtil.newTimedCache(replicaTtlMillis);
+        redisMessageListenerContainer.addMessageListener(this,
+                Arrays.asList(new ChannelTopic(HOT_KEY_CHANNEL), new ChannelTopic(CACHE_INVALIDATE_CHANNEL)));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hot-key-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::rollWindow, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问,只有被采样到的访问才会计数
+     * @param key 访问的redis key
+     */
+    public void record(String key) {
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        counters.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 读取一个key,热点key优先读取本地副本
+     * @param key redis key
+     * @param reader 从redis中读取的方法
+     * @return redis中的值
+     */
+    public <V> V get(String key, Function<String, V> reader) {
+        record(key);
+        V replica = getReplica(key);
+        if (replica != null) {
+            return replica;
+        }
+        // 读取redis之前获取版本号,读取期间收到删除通知的旧值不能写入副本
+        long version = version(key);
+        V value = reader.apply(key);
+        putReplica(key, value, version);
+        return value;
+    }
+
+    /**
+     * 获取热点key的本地副本
+     * @param key redis key
+     * @return 不是热点key或者副本已经过期时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V getReplica(String key) {
+        if (!isHot(key)) {
+            return null;
+        }
+        return (V) replicas.get(key, false);
+    }
+
+    /**
+     * 当前的版本号,在读取redis之前获取,写入本地副本时使用
+     */
+    public long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * 热点key从redis中读取之后保存一份本地副本
+     * 写入之后再检查一次版本号,删除发生在检查和写入之间时把刚写入的副本删掉
+     * @param version 读取redis之前获取的版本号,之后收到过删除通知的不写入
+     */
+    public void putReplica(String key, Object value, long version) {
+        if (value == null || !isHot(key) || version(key) != version) {
+            return;
+        }
+        replicas.put(key, value);
+        if (version(key) != version) {
+            replicas.remove(key);
+        }
+    }
+
+    /**
+     * 删除本地副本
+     */
+    public void evict(String key) {
+        versions.incrementAndGet(stripe(key));
+        if (replicas != null) {
+            replicas.remove(key);
+        }
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * 当前所有的热点key,按照访问速率从高到低排序
+     */
+    public List<HotKey> getHotKeys() {
+        return hotKeys.values().stream()
+                .sorted(Comparator.comparingDouble(HotKey::getRate).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 一个统计窗口结束,估算每个key的访问速率,决定升级还是降级
+     */
+    private void rollWindow() {
+        try {
+            Map<String, LongAdder> window = counters;
+            counters = new ConcurrentHashMap<>();
+            double seconds = windowMillis / 1000.0;
+            Set<String> seen = new HashSet<>();
+            for (Map.Entry<String, LongAdder> entry : window.entrySet()) {
+                String key = entry.getKey();
+                double rate = entry.getValue().sum() / sampleRate / seconds;
+                seen.add(key);
+                if (rate >= threshold) {
+                    // 新的热点key或者继续保持热点,通知所有节点(同时起到续期的作用)
+                    ownedHotKeys.put(key, 0);
+                    publish("promote|" + Math.round(rate) + "|" + key);
+                } else {
+                    checkDemote(key, rate);
+                }
+            }
+            for (String key : new ArrayList<>(ownedHotKeys.keySet())) {
+                if (!seen.contains(key)) {
+                    checkDemote(key, 0);
+                }
+            }
+            // 负责续期的节点挂了的话,热点key在若干个窗口之后自动失效
+            long expireBefore = System.currentTimeMillis() - windowMillis * (demoteWindows + 1L);
+            hotKeys.values().removeIf(hotKey -> hotKey.getRefreshedAt() < expireBefore);
+        } catch (Exception e) {
+            log.error("热点key统计异常", e);
+        }
+    }
+
+    private void checkDemote(String key, double rate) {
+        Integer coldWindows = ownedHotKeys.get(key);
+        if (coldWindows == null) {
+            return;
+        }
+        if (rate >= threshold / 2) {
+            ownedHotKeys.put(key, 0);
+            return;
+        }
+        if (coldWindows + 1 >= demoteWindows) {
+            ownedHotKeys.remove(key);
+            publish("demote|" + key);
+        } else {
+            ownedHotKeys.put(key, coldWindows + 1);
+        }
+    }
+
+    private void publish(String message) {
+        stringRedisTemplate.convertAndSend(HOT_KEY_CHANNEL, message);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (CACHE_INVALIDATE_CHANNEL.equals(channel)) {
+            evict(body);
+            return;
+        }
+        String[] parts = body.split("\\|", 3);
+        if ("promote".equals(parts[0]) && parts.length == 3) {
+            HotKey hotKey = hotKeys.computeIfAbsent(parts[2], k -> {
+                log.info("升级为热点key:{},速率:{}/s", k, parts[1]);
+                HotKey h = new HotKey();
+                h.setKey(k);
+                h.setPromotedAt(System.currentTimeMillis());
+                return h;
+            });
+            hotKey.setRate(Double.parseDouble(parts[1]));
+            hotKey.setRefreshedAt(System.currentTimeMillis());
+        } else if ("demote".equals(parts[0]) && parts.length == 2) {
+            log.info("热点key降级:{}", parts[1]);
+            hotKeys.remove(parts[1]);
+            evict(parts[1]);
+        }
+    }
+
+    @Data
+    public static class HotKey {
+        private String key;
+        /**
+         * 探测到的访问速率(次/秒)
+         */
+        private volatile double rate;
+        private long promotedAt;
+        private volatile long refreshedAt;
+    }
+}
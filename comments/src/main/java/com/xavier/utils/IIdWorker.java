@@ -0,0 +1,13 @@
+package com.xavier.utils;
+
+/**
+ * 全局唯一id生成器
+ * 默认使用基于redis自增的RedisIWorker,配置comments.id.worker=snowflake时使用不依赖redis的SnowflakeIdWorker
+ */
+public interface IIdWorker {
+    /**
+     * 生成下一个id
+     * @param keyPrefix 业务前缀,不同业务的id可以独立计数
+     */
+    long nextID(String keyPrefix);
+}
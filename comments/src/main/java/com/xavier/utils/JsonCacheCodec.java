@@ -0,0 +1,40 @@
+package com.xavier.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * json格式的编解码器,可读性好,兼容性最好
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+    public static final byte VERSION = 1;
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, int offset, Class<T> type) {
+        return JSONUtil.toList(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), type);
+    }
+}
@@ -0,0 +1,123 @@
+package com.xavier.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import com.xavier.dto.UserDTO;
+import com.xavier.entity.Blog;
+import com.xavier.entity.Shop;
+import com.xavier.entity.ShopType;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * kryo二进制格式的编解码器,体积小,解码不需要经过json的中间对象
+ * 数据的前4个字节是注册的类的结构指纹,实体类的字段发生变化之后指纹不同,读取到的旧数据按照未命中处理;
+ * 只能读写注册过的类,并且按照调用方传入的类型读取,不从数据中读取类名,redis中的数据不能让应用实例化任意的类
+ */
+@Component
+public class KryoCacheCodec implements CacheCodec {
+    public static final byte VERSION = 2;
+
+    /**
+     * 缓存的类以及它们的字段类型注册固定的id,id一旦使用不能修改,基本类型和String由kryo默认注册
+     */
+    private static final Class<?>[] REGISTERED = {ArrayList.class, Shop.class, ShopType.class, Blog.class, UserDTO.class,
+            LocalDateTime.class};
+    private static final int FIRST_ID = 100;
+
+    /**
+     * 数据格式的版本,写在指纹中,格式变化之后旧数据按照未命中处理
+     */
+    private static final int FORMAT = 2;
+
+    private final int fingerprint = fingerprint();
+
+    /**
+     * kryo不是线程安全的,使用对象池复用
+     */
+    private final Pool<Kryo> pool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(true);
+            kryo.setReferences(false);
+            for (int i = 0; i < REGISTERED.length; i++) {
+                kryo.register(REGISTERED[i], FIRST_ID + i);
+            }
+            return kryo;
+        }
+    };
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public String name() {
+        return "kryo";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = pool.obtain();
+        try (Output output = new Output(256, -1)) {
+            output.writeInt(fingerprint);
+            // 列表统一按照ArrayList写入,读取的时候不需要知道原来的实现类
+            kryo.writeObject(output, value instanceof List && !(value instanceof ArrayList) ? new ArrayList<>((List<?>) value) : value);
+            return output.toBytes();
+        } finally {
+            pool.free(kryo);
+        }
+    }
+
+    @Override
+    public boolean isReadable(byte[] bytes, int offset) {
+        return bytes.length >= offset + 4 && ByteBuffer.wrap(bytes, offset, 4).getInt() == fingerprint;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        Kryo kryo = pool.obtain();
+        try (Input input = new Input(bytes, offset + 4, bytes.length - offset - 4)) {
+            return kryo.readObject(input, type);
+        } finally {
+            pool.free(kryo);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> decodeList(byte[] bytes, int offset, Class<T> type) {
+        return decode(bytes, offset, ArrayList.class);
+    }
+
+    /**
+     * 根据注册的类以及它们的字段名称和类型计算指纹
+     */
+    private static int fingerprint() {
+        CRC32 crc = new CRC32();
+        crc.update(FORMAT);
+        for (Class<?> clazz : REGISTERED) {
+            crc.update(clazz.getName().getBytes(StandardCharsets.UTF_8));
+            for (Class<?> c = clazz; c != null && c != Object.class && !c.getName().startsWith("java."); c = c.getSuperclass()) {
+                Arrays.stream(c.getDeclaredFields())
+                        .filter(f -> !Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers()))
+                        .map(f -> f.getName() + ":" + f.getType().getName())
+                        .sorted()
+                        .forEach(f -> crc.update(f.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,155 @@
+package com.xavier.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.xavier.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * CacheClient前面的一级本地缓存
+ * 容量有限,超出容量按LRU淘汰,每个数据有过期时间
+ * 某个节点删除redis中的缓存时会通过发布订阅通知所有节点把本地缓存也删掉
+ * 保存的是编码之后的数据,每次读取都解码出新的对象,调用方修改返回的对象不会影响其他调用方;
+ * 每个key有一个版本号,删除时加一,查询redis和数据库之前记下版本号,写入时版本号变了说明这期间收到过删除通知,数据已经过时了,不写入
+ */
+@Component
+@Slf4j
+public class LocalCache implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${comments.cache.local.enabled:true}")
+    private boolean enabled;
+
+    @Value("${comments.cache.local.capacity:10000}")
+    private int capacity;
+
+    @Value("${comments.cache.local.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    /**
+     * 版本号按照key的hash分段,不为每个key保存版本号,不同的key落在同一段只会多放弃几次写入
+     */
+    private static final int VERSION_STRIPES = 4096;
+
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private LRUCache<String, byte[]> cache;
+
+    @PostConstruct
+    private void init() {
+        cache = CacheUtil.newLRUCache(capacity, ttlSeconds * 1000);
+        // 订阅缓存失效的频道
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 从本地缓存中获取数据
+     * @param key 缓存的key
+     * @return 编码之后的数据,不存在或者未开启本地缓存时返回null
+     */
+    public byte[] get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        return cache.get(key, false);
+    }
+
+    /**
+     * 当前的版本号,在查询redis或者数据库之前获取,写入本地缓存时使用
+     */
+    public long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * 所有分段当前的版本号,查询之前还不知道会查到哪些key时使用,例如流式查询全表
+     */
+    public long[] versionSnapshot() {
+        long[] snapshot = new long[VERSION_STRIPES];
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            snapshot[i] = versions.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 获取快照之后key是否收到过删除通知
+     */
+    public boolean isModified(String key, long[] snapshot) {
+        int stripe = stripe(key);
+        return versions.get(stripe) != snapshot[stripe];
+    }
+
+    /**
+     * 将数据放入本地缓存,空值不缓存
+     * 写入之后再检查一次版本号,删除发生在检查和写入之间时把刚写入的数据删掉
+     * @param key 缓存的key
+     * @param value 编码之后的数据
+     * @param version 查询数据之前获取的版本号,之后收到过删除通知的不写入
+     */
+    public void put(String key, byte[] value, long version) {
+        if (!enabled || value == null || value.length == 0 || version(key) != version) {
+            return;
+        }
+        cache.put(key, value);
+        if (version(key) != version) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * 删除本节点的本地缓存,并通知其他节点一起删除
+     * @param key 需要删除的key
+     */
+    public void invalidate(String key) {
+        evict(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 只删除本节点的本地缓存
+     * @param key 需要删除的key
+     */
+    public void evict(String key) {
+        versions.incrementAndGet(stripe(key));
+        if (cache != null) {
+            cache.remove(key);
+        }
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * 接收到其他节点发送过来的缓存失效消息
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到缓存失效通知:{}", key);
+        evict(key);
+    }
+}
@@ -0,0 +1,365 @@
+package com.xavier.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import static com.xavier.utils.RedisConstants.*;
+
+/**
+ * 基于redis bitmap的布隆过滤器,用来解决缓存穿透问题
+ * 每一个缓存key的前缀对应一个过滤器,redis中保存一份,同时在本地内存中保存一份镜像,查询时只查本地内存;
+ * 新增数据时同时写redis和本地,并通过发布订阅通知其他节点更新自己的镜像
+ */
+@Component
+@Slf4j
+public class RedisBloomFilter implements MessageListener {
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        SWAP_SCRIPT = new DefaultRedisScript<>();
+        SWAP_SCRIPT.setLocation(new ClassPathResource("bloom_swap.lua"));
+        SWAP_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 期望的误判率
+     */
+    @Value("${comments.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 每一个前缀对应的本地过滤器
+     */
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    /**
+     * 每一个前缀对应的数据库全量id的加载方法,重建的时候使用
+     */
+    private final Map<String, Supplier<Collection<?>>> loaders = new ConcurrentHashMap<>();
+
+    /**
+     * 正在重建的前缀,重建期间新增的id先记录下来,重建完成后补上
+     */
+    private final Map<String, Set<String>> rebuilding = new ConcurrentHashMap<>();
+
+    /**
+     * 正在从redis加载的前缀,加载期间本地新增的id可能不在读到的位数组中,加载完成后补到新的本地过滤器上
+     */
+    private final Map<String, Set<String>> reloading = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this,
+                Arrays.asList(new ChannelTopic(BLOOM_ADD_CHANNEL), new ChannelTopic(BLOOM_RELOAD_CHANNEL)));
+    }
+
+    /**
+     * 注册一个前缀的过滤器,redis中已经有了则直接加载到本地,没有则从数据库重建
+     * @param keyPrefix 缓存key的前缀
+     * @param idLoader 查询数据库中全部id的方法
+     */
+    public void register(String keyPrefix, Supplier<Collection<?>> idLoader) {
+        loaders.put(keyPrefix, idLoader);
+        if (!reload(keyPrefix)) {
+            rebuild(keyPrefix);
+        }
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param keyPrefix 缓存key的前缀
+     * @param id 数据的id
+     * @return false表示一定不存在;还没有初始化的过滤器一律返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return true;
+        }
+        for (long offset : filter.offsets(id.toString())) {
+            if (!filter.get(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增数据后将id加入过滤器,并通知其他节点
+     * @param keyPrefix 缓存key的前缀
+     * @param id 新增数据的id
+     */
+    public void add(String keyPrefix, Object id) {
+        if (id == null) {
+            return;
+        }
+        String value = id.toString();
+        addLocal(keyPrefix, value);
+        // 脚本发现redis中的参数和本地的不一致时,说明其他节点已经重建过了,重新加载之后再写入一次
+        for (int i = 0; i < 2; i++) {
+            Filter filter = filters.get(keyPrefix);
+            if (filter == null || addRedis(keyPrefix, filter, value)) {
+                break;
+            }
+            log.info("布隆过滤器{}已经被其他节点重建,重新加载", keyPrefix);
+            reload(keyPrefix);
+            addLocal(keyPrefix, value);
+        }
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, keyPrefix + "|" + id);
+    }
+
+    /**
+     * 按照filter的参数计算偏移量写入redis
+     * @return redis中的参数和filter的不一致时返回false,没有写入
+     */
+    private boolean addRedis(String keyPrefix, Filter filter, String value) {
+        List<String> args = new ArrayList<>(filter.numHashes + 2);
+        args.add(String.valueOf(filter.numBits));
+        args.add(String.valueOf(filter.numHashes));
+        for (long offset : filter.offsets(value)) {
+            args.add(String.valueOf(offset));
+        }
+        Long result = stringRedisTemplate.execute(ADD_SCRIPT,
+                Arrays.asList(BLOOM_FILTER_KEY + keyPrefix, BLOOM_META_KEY + keyPrefix), args.toArray());
+        return result != null && result == 1;
+    }
+
+    /**
+     * 从数据库中全量重建过滤器
+     * 按照当前数据量的两倍和配置的误判率计算位数组的大小,写入一个临时key之后再rename,保证重建过程中读到的都是完整的数据;
+     * rename和更新参数在一个脚本中执行,位数组和参数总是匹配的
+     * @param keyPrefix 缓存key的前缀
+     */
+    public void rebuild(String keyPrefix) {
+        Supplier<Collection<?>> loader = loaders.get(keyPrefix);
+        if (loader == null) {
+            return;
+        }
+        // 多个节点同时重建没有意义,只让拿到锁的节点去做
+        ILock lock = new SimpleRedisLock(BLOOM_FILTER_KEY + keyPrefix, stringRedisTemplate);
+        if (!lock.tryLock(BLOOM_REBUILD_LOCK_TTL)) {
+            return;
+        }
+        rebuilding.put(keyPrefix, ConcurrentHashMap.newKeySet());
+        try {
+            long start = System.currentTimeMillis();
+            Collection<?> ids = loader.get();
+            Filter filter = Filter.create(Math.max(ids.size() * 2L, BLOOM_MIN_EXPECTED), fpp);
+            for (Object id : ids) {
+                for (long offset : filter.offsets(id.toString())) {
+                    filter.set(offset);
+                }
+            }
+            String key = BLOOM_FILTER_KEY + keyPrefix;
+            String tmpKey = key + ":tmp";
+            byte[] bytes = filter.toRedisBytes();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.set(tmpKey.getBytes(StandardCharsets.UTF_8), bytes));
+            stringRedisTemplate.execute(SWAP_SCRIPT, Arrays.asList(tmpKey, key, BLOOM_META_KEY + keyPrefix),
+                    String.valueOf(filter.numBits), String.valueOf(filter.numHashes));
+            filters.put(keyPrefix, filter);
+            log.info("布隆过滤器{}重建完成,数据量:{},位数:{},哈希次数:{},耗时:{}ms",
+                    keyPrefix, ids.size(), filter.numBits, filter.numHashes, System.currentTimeMillis() - start);
+        } finally {
+            // 重建期间新增的id补写到新的过滤器中
+            Set<String> pending = rebuilding.remove(keyPrefix);
+            lock.unlock();
+            if (pending != null) {
+                pending.forEach(id -> add(keyPrefix, id));
+            }
+        }
+        // 通知其他节点重新加载
+        stringRedisTemplate.convertAndSend(BLOOM_RELOAD_CHANNEL, keyPrefix);
+    }
+
+    /**
+     * 重建所有注册过的过滤器
+     */
+    public void rebuildAll() {
+        loaders.keySet().forEach(this::rebuild);
+    }
+
+    /**
+     * 从redis中把过滤器加载到本地
+     * @param keyPrefix 缓存key的前缀
+     * @return redis中不存在该过滤器时返回false
+     */
+    private boolean reload(String keyPrefix) {
+        Set<String> added = ConcurrentHashMap.newKeySet();
+        reloading.put(keyPrefix, added);
+        try {
+            return doReload(keyPrefix);
+        } finally {
+            reloading.remove(keyPrefix, added);
+            added.forEach(id -> addLocal(keyPrefix, id));
+        }
+    }
+
+    private boolean doReload(String keyPrefix) {
+        String key = BLOOM_FILTER_KEY + keyPrefix;
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(BLOOM_META_KEY + keyPrefix);
+        byte[] bytes = null;
+        boolean consistent = false;
+        // 读取位数组的时候其他节点可能刚好完成重建,读完之后参数变了就重新读一次,保证位数组和参数是同一次重建的
+        for (int i = 0; i < 3 && !consistent && !meta.isEmpty(); i++) {
+            bytes = stringRedisTemplate.execute(
+                    (RedisCallback<byte[]>) connection -> connection.get(key.getBytes(StandardCharsets.UTF_8)));
+            Map<Object, Object> current = stringRedisTemplate.opsForHash().entries(BLOOM_META_KEY + keyPrefix);
+            consistent = current.equals(meta);
+            meta = current;
+        }
+        if (!consistent || bytes == null) {
+            return false;
+        }
+        long numBits = Long.parseLong(meta.get("bits").toString());
+        int numHashes = Integer.parseInt(meta.get("hashes").toString());
+        filters.put(keyPrefix, Filter.fromRedisBytes(numBits, numHashes, bytes));
+        return true;
+    }
+
+    private void addLocal(String keyPrefix, String id) {
+        Set<String> pending = rebuilding.get(keyPrefix);
+        if (pending != null) {
+            pending.add(id);
+        }
+        Set<String> added = reloading.get(keyPrefix);
+        if (added != null) {
+            added.add(id);
+        }
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        for (long offset : filter.offsets(id)) {
+            filter.set(offset);
+        }
+    }
+
+    /**
+     * 接收其他节点的新增和重建通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (BLOOM_RELOAD_CHANNEL.equals(channel)) {
+            if (loaders.containsKey(body)) {
+                reload(body);
+            }
+            return;
+        }
+        int index = body.lastIndexOf('|');
+        if (index > 0) {
+            addLocal(body.substring(0, index), body.substring(index + 1));
+        }
+    }
+
+    /**
+     * 本地内存中的位数组
+     * 位的顺序与redis的bitmap一致,即偏移量0是第一个字节的最高位
+     */
+    private static class Filter {
+        private final long numBits;
+        private final int numHashes;
+        private final AtomicLongArray words;
+
+        private Filter(long numBits, int numHashes) {
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+            this.words = new AtomicLongArray((int) ((numBits + 63) >>> 6));
+        }
+
+        /**
+         * 根据期望数据量和误判率计算位数组大小以及哈希次数
+         */
+        static Filter create(long expected, double fpp) {
+            long numBits = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            // 按字节对齐,方便与redis互相转换
+            numBits = (numBits + 7) / 8 * 8;
+            int numHashes = Math.max(1, (int) Math.round((double) numBits / expected * Math.log(2)));
+            return new Filter(numBits, numHashes);
+        }
+
+        static Filter fromRedisBytes(long numBits, int numHashes, byte[] bytes) {
+            Filter filter = new Filter(numBits, numHashes);
+            for (int i = 0; i < bytes.length && i * 8L < numBits; i++) {
+                int b = bytes[i] & 0xFF;
+                for (int j = 0; j < 8; j++) {
+                    if ((b & (0x80 >>> j)) != 0) {
+                        filter.set(i * 8L + j);
+                    }
+                }
+            }
+            return filter;
+        }
+
+        byte[] toRedisBytes() {
+            byte[] bytes = new byte[(int) (numBits / 8)];
+            for (long i = 0; i < numBits; i++) {
+                if (get(i)) {
+                    bytes[(int) (i >>> 3)] |= (byte) (0x80 >>> (i & 7));
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * 使用murmur128的两个64位结果做双重哈希,计算出numHashes个偏移量
+         */
+        long[] offsets(String value) {
+            long[] hash = MurmurHash.hash128(StrUtil.utf8Bytes(value));
+            long[] offsets = new long[numHashes];
+            for (int i = 0; i < numHashes; i++) {
+                long combined = hash[0] + i * hash[1];
+                offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            }
+            return offsets;
+        }
+
+        boolean get(long offset) {
+            return (words.get((int) (offset >>> 6)) & (1L << (offset & 63))) != 0;
+        }
+
+        void set(long offset) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << (offset & 63);
+            long old;
+            do {
+                old = words.get(index);
+                if ((old & mask) != 0) {
+                    return;
+                }
+            } while (!words.compareAndSet(index, old, old | mask));
+        }
+    }
+}
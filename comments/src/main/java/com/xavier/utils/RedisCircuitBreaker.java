@@ -0,0 +1,151 @@
+package com.xavier.utils;
+
+import io.lettuce.core.RedisConnectionException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * redis的熔断器
+ * 连续failure-threshold次访问redis失败之后打开,打开期间秒杀不再访问redis,直接走数据库降级;
+ * 打开之后每隔probe-millis用ping探测redis,探测成功之后先执行注册的恢复任务(把降级期间的订单同步回redis),再关闭熔断器
+ */
+@Slf4j
+@Component
+public class RedisCircuitBreaker {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${comments.redis.breaker.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 连续失败多少次之后打开
+     */
+    @Value("${comments.redis.breaker.failure-threshold:5}")
+    private int failureThreshold;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile boolean open;
+
+    /**
+     * redis恢复之后、熔断器关闭之前执行的任务
+     */
+    private final List<Runnable> recoveryTasks = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("redis.breaker.open", () -> open ? 1 : 0)
+                .description("redis熔断器是否打开").register(meterRegistry);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void addRecoveryTask(Runnable task) {
+        recoveryTasks.add(task);
+    }
+
+    /**
+     * 访问redis成功,清零连续失败的次数
+     */
+    public void recordSuccess() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    /**
+     * 记录一次访问redis的异常
+     * @return 是否是redis不可用导致的异常,其他异常不计入失败次数
+     */
+    public boolean recordFailure(Throwable e) {
+        if (!enabled || !isUnavailable(e)) {
+            return false;
+        }
+        if (failures.incrementAndGet() >= failureThreshold && !open) {
+            open = true;
+            meterRegistry.counter("redis.breaker.opened").increment();
+            log.error("redis连续{}次访问失败,打开熔断器,秒杀切换到数据库降级", failures.get(), e);
+        }
+        return true;
+    }
+
+    /**
+     * 命令是否确定没有发送到redis,例如没有连接时被拒绝,这时候可以放心地走降级,不会和redis中的结果重复
+     * 超时的命令可能已经执行了,不能确定
+     */
+    public static boolean isNotExecuted(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RedisConnectionFailureException || t instanceof RedisConnectionException) {
+                return true;
+            }
+            if (t.getMessage() != null && t.getMessage().contains("Currently not connected")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnavailable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RedisConnectionFailureException || t instanceof QueryTimeoutException
+                    || t instanceof RedisConnectionException) {
+                return true;
+            }
+            // 连接断开时lettuce拒绝或者取消命令抛出的异常,脚本错误等其他异常不算
+            if (t.getMessage() != null
+                    && (t.getMessage().contains("Currently not connected") || t.getMessage().contains("Connection closed"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 熔断器打开期间探测redis是否恢复
+     */
+    @Scheduled(fixedDelayString = "${comments.redis.breaker.probe-millis:1000}")
+    public void probe() {
+        if (!open) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+        } catch (Exception e) {
+            log.debug("redis仍然不可用", e);
+            return;
+        }
+        // 恢复任务失败时保持打开,下一次探测重试,避免redis中缺少降级期间的用户导致重复下单
+        for (Runnable task : recoveryTasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("redis恢复任务执行失败,熔断器保持打开", e);
+                return;
+            }
+        }
+        failures.set(0);
+        open = false;
+        log.info("redis已经恢复,关闭熔断器");
+    }
+}
@@ -9,14 +9,42 @@ public class RedisConstants {
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
+    public static final Double XFETCH_BETA = 1.0;
+    public static final Double CACHE_TTL_JITTER = 0.1;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_LIST_KEY = "cache:shop:list";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String HOT_KEY_CHANNEL = "cache:hotkey";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final Long LOCK_WAIT_MILLIS = 200L;
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_STREAMS_KEY = "seckill:order-streams";
+    public static final String SECKILL_ORDER_GROUP = "order-persister";
+    public static final String SECKILL_ORDER_LOST_KEY = "seckill:lost-orders";
+    public static final Long SECKILL_ORDER_LOST_MAX = 10000L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_TICKET_KEY = "seckill:ticket:";
+    public static final Long SECKILL_TICKET_TTL = 30L;
+    public static final String SECKILL_PENDING_KEY = "seckill:pending:";
+    public static final String SECKILL_PENDING_VOUCHERS_KEY = "seckill:pending-vouchers";
+    public static final String SECKILL_IDEMPOTENCY_KEY = "seckill:idem:";
+    public static final Long SECKILL_IDEMPOTENCY_TTL = 5L;
+    public static final String SECKILL_RECONCILE_LOCK_KEY = "seckill:reconcile";
+    public static final Long SECKILL_RECONCILE_LOCK_TTL = 600L;
+    public static final String SECKILL_LIFECYCLE_LOCK_KEY = "seckill:lifecycle";
+    public static final Long SECKILL_LIFECYCLE_LOCK_TTL = 300L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOWS_KEY = "follow:";
     public static final String FANS_FEED_KEY = "fans:feed:";
@@ -27,4 +55,12 @@ public class RedisConstants {
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_META_KEY = "bloom:meta:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_RELOAD_CHANNEL = "bloom:reload";
+    public static final Long BLOOM_REBUILD_LOCK_TTL = 300L;
+    public static final Long BLOOM_MIN_EXPECTED = 100000L;
 }
@@ -1,17 +1,29 @@
 package com.xavier.utils;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局唯一id生成器,id的格式为 时间戳 << 32 | 当天的序列号,序列号保存在每天一个的redis key中
+ * 号段模式下每次用INCRBY从redis预留一段序列号,在内存中无锁的分配,当前号段用掉一部分之后异步预留下一段,
+ * 号段用完时直接切换;没有用完的序列号在重启之后会被跳过,所以号段模式下的序列号不是连续的
+ */
 @Component
 @Slf4j
-public class RedisIWorker {
+public class RedisIWorker implements IIdWorker {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     /**
@@ -24,15 +36,153 @@ public class RedisIWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 每次从redis预留的序列号数量,小于等于1时每个id都访问一次redis
+     */
+    @Value("${comments.id.segment.size:1000}")
+    private int segmentSize;
+
+    /**
+     * 当前号段剩余的比例低于这个值时异步预留下一段
+     */
+    @Value("${comments.id.segment.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    /**
+     * 每个业务前缀的号段
+     */
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private ExecutorService prefetchExecutor;
+
+    @PostConstruct
+    private void init() {
+        prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "id-segment-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    @Override
     public long nextID(String keyPrefix){
         // 生成时间戳
-        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        LocalDateTime now = LocalDateTime.now();
+        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         // 生成序列号
-        String nowDateFormat = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + nowDateFormat);
+        long count = segmentSize <= 1
+                ? stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, now.toLocalDate()))
+                : buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now.toLocalDate());
         // 拼接并返回
         return timestamp << COUNT_BITS | count;
 
     }
+
+    private String sequenceKey(String keyPrefix, LocalDate date) {
+        return "icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER);
+    }
+
+    /**
+     * 从redis预留一段序列号
+     */
+    private Segment reserve(String keyPrefix, LocalDate date) {
+        Long end = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, date), segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("预留序列号失败:" + keyPrefix);
+        }
+        return new Segment(date, end - segmentSize + 1, end);
+    }
+
+    /**
+     * 一段预留的序列号[start, end]
+     */
+    private static class Segment {
+        private final LocalDate date;
+        private final long start;
+        private final long end;
+        private final AtomicLong cursor;
+
+        private Segment(LocalDate date, long start, long end) {
+            this.date = date;
+            this.start = start;
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的双缓冲号段,current用完之后切换到提前预留好的next
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Future<Segment> next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(LocalDate today) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(today)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.end) {
+                        if (count - segment.start >= segmentSize * (1 - prefetchRatio)) {
+                            prefetch(segment.date);
+                        }
+                        return count;
+                    }
+                }
+                // 号段用完或者已经到了第二天,切换号段
+                switchSegment(segment, today);
+            }
+        }
+
+        private void prefetch(LocalDate date) {
+            if (next != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                next = CompletableFuture.supplyAsync(() -> reserve(keyPrefix, date), prefetchExecutor);
+            } catch (RejectedExecutionException e) {
+                prefetching.set(false);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, LocalDate today) {
+            if (current != exhausted) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            Future<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    segment = future.get();
+                } catch (ExecutionException e) {
+                    log.warn("异步预留序列号失败,同步重试:{}", keyPrefix, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("预留序列号被中断:" + keyPrefix, e);
+                }
+            }
+            // 跨天之后前一天预留的号段不能再使用
+            if (segment == null || !segment.date.equals(today)) {
+                segment = reserve(keyPrefix, today);
+            }
+            current = segment;
+            prefetching.set(false);
+        }
+    }
 }
@@ -0,0 +1,224 @@
+package com.xavier.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.xavier.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀请求的准入控制,在执行秒杀脚本之前拒绝超出速率的请求
+ * 先经过本地每张秒杀券一个的令牌桶,速率按照剩余库存计算,库存越少放行的请求越少;
+ * 通过本地令牌桶的请求再经过redis中的滑动窗口限流,限制所有节点放行的总数;
+ * 被拒绝的请求不访问秒杀脚本,返回建议的重试等待时间
+ * 剩余库存定时从redis的分片中汇总,已经售罄的秒杀券直接放行,由本地的售罄标记拒绝
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Value("${comments.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 本地令牌桶每秒放行的请求数 = 剩余库存 * local-ratio,不低于local-min-rate
+     */
+    @Value("${comments.seckill.admission.local-ratio:1.0}")
+    private double localRatio;
+
+    @Value("${comments.seckill.admission.local-min-rate:20}")
+    private double localMinRate;
+
+    /**
+     * 滑动窗口内所有节点放行的请求数 = 剩余库存 * window-ratio,不低于window-min,小于等于0时不使用分布式限流
+     */
+    @Value("${comments.seckill.admission.window-ratio:3.0}")
+    private double windowRatio;
+
+    @Value("${comments.seckill.admission.window-min:100}")
+    private long windowMin;
+
+    @Value("${comments.seckill.admission.window-millis:1000}")
+    private long windowMillis;
+
+    /**
+     * 超过这个时间没有请求的秒杀券不再刷新库存,并移除令牌桶
+     */
+    @Value("${comments.seckill.admission.idle-millis:60000}")
+    private long idleMillis;
+
+    private final ConcurrentHashMap<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private Counter localRejected;
+    private Counter globalRejected;
+
+    @PostConstruct
+    private void init() {
+        localRejected = Counter.builder("seckill.admission.rejected").tag("reason", "local")
+                .description("被本地令牌桶拒绝的秒杀请求").register(meterRegistry);
+        globalRejected = Counter.builder("seckill.admission.rejected").tag("reason", "global")
+                .description("被分布式滑动窗口拒绝的秒杀请求").register(meterRegistry);
+    }
+
+    /**
+     * 申请执行一次秒杀
+     * @return 0表示放行,大于0表示被拒绝,值为建议的重试等待毫秒数
+     */
+    public long tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return 0;
+        }
+        Bucket bucket = buckets.get(voucherId);
+        if (bucket == null) {
+            bucket = newBucket(voucherId);
+        }
+        long now = System.nanoTime();
+        bucket.lastSeen = now;
+        long stock = bucket.stock;
+        if (stock <= 0) {
+            // 售罄或者库存还不知道,交给后面的售罄标记和秒杀脚本判断
+            return 0;
+        }
+        long wait = bucket.tryAcquire(now);
+        if (wait > 0) {
+            localRejected.increment();
+            return wait;
+        }
+        // redis熔断期间只使用本地令牌桶
+        if (windowRatio <= 0 || redisCircuitBreaker.isOpen()) {
+            return 0;
+        }
+        long limit = Math.max(windowMin, (long) (stock * windowRatio));
+        try {
+            Long retry = stringRedisTemplate.execute(LIMIT_SCRIPT, Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(limit), String.valueOf(windowMillis));
+            if (retry != null && retry > 0) {
+                globalRejected.increment();
+                return retry;
+            }
+        } catch (Exception e) {
+            // 限流不可用时放行,秒杀脚本会自己处理redis的异常
+            log.debug("分布式限流失败:{}", voucherId, e);
+        }
+        return 0;
+    }
+
+    /**
+     * 定时汇总正在秒杀的券的剩余库存,调整令牌桶的速率
+     */
+    @Scheduled(fixedDelayString = "${comments.seckill.admission.refresh-millis:500}")
+    public void refresh() {
+        long now = System.nanoTime();
+        buckets.forEach((voucherId, bucket) -> {
+            if (now - bucket.lastSeen > TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+                buckets.remove(voucherId, bucket);
+                return;
+            }
+            try {
+                bucket.update(loadStock(voucherId));
+            } catch (Exception e) {
+                log.warn("刷新秒杀券的剩余库存失败:{}", voucherId, e);
+            }
+        });
+    }
+
+    /**
+     * 不在computeIfAbsent中查询redis,查询期间会阻塞map中同一段的其他秒杀券;
+     * 只有放入令牌桶的线程查询一次库存,同时到达的请求看到库存未知直接放行,查询失败的由定时刷新补上
+     */
+    private Bucket newBucket(Long voucherId) {
+        Bucket bucket = new Bucket();
+        Bucket existing = buckets.putIfAbsent(voucherId, bucket);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            bucket.update(loadStock(voucherId));
+        } catch (Exception e) {
+            log.warn("查询秒杀券的剩余库存失败:{}", voucherId, e);
+        }
+        return bucket;
+    }
+
+    private long loadStock(Long voucherId) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(seckillStockShards.stockKeys(voucherId));
+        long stock = 0;
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    stock += Math.max(0, Long.parseLong(value));
+                }
+            }
+        }
+        return stock;
+    }
+
+    /**
+     * 一张秒杀券的本地令牌桶,容量为一秒的令牌数
+     */
+    private class Bucket {
+        private volatile long stock;
+        private volatile long lastSeen = System.nanoTime();
+        private double rate = localMinRate;
+        private double tokens = localMinRate;
+        private long refilledAt = System.nanoTime();
+        private boolean loaded;
+
+        private synchronized void update(long stock) {
+            this.stock = stock;
+            rate = Math.max(localMinRate, stock * localRatio);
+            if (loaded) {
+                tokens = Math.min(tokens, rate);
+            } else {
+                // 第一次拿到库存时令牌桶是满的,秒杀开始时允许一秒的突发
+                loaded = true;
+                tokens = rate;
+            }
+        }
+
+        /**
+         * @return 0表示拿到了令牌,否则为下一个令牌产生需要等待的毫秒数
+         */
+        private synchronized long tryAcquire(long now) {
+            tokens = Math.min(rate, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.xavier.utils;
+
+import com.xavier.dto.Result;
+import com.xavier.entity.SeckillVoucher;
+import com.xavier.entity.VoucherOrder;
+import com.xavier.mapper.SeckillVoucherMapper;
+import com.xavier.mapper.VoucherOrderMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis不可用时秒杀的数据库降级
+ * 熔断器是每个节点自己的,部分节点连不上redis时,其他节点仍然在redis中秒杀,所以降级只卖预留的库存fallback_stock:
+ * 它在创建秒杀券时单独设置,不加载到redis,也不计入对账的总库存,两边卖的是不相交的两部分库存,不会超卖;
+ * 每个请求在一个事务中先用 fallback_stock > 0 的条件扣减预留库存,扣减拿到的行锁让同一张秒杀券的请求串行执行,
+ * 再检查用户是否已经有订单,有的话回滚,没有就同步插入订单,订单表上(user_id, voucher_id)的唯一索引兜底重复下单;
+ * 没有预留库存或者预留库存卖完之后返回繁忙,等待redis恢复;
+ * 所有秒杀券共用一个本地信号量限制同时访问数据库的请求数,拿不到的请求直接返回繁忙,保护数据库;
+ * 降级期间下单的秒杀券记录在本地,redis恢复之后把这些用户补写到redis,之后的请求回到redis秒杀时才能判断重复下单;
+ * redis中秒杀成功还没有写入数据库的订单不在订单表中,redis可用的时候定时从票据的pending索引刷新每张优惠券还在写入中的用户,
+ * 降级时加上这个节点内存队列和日志中的订单,这些用户算作已经购买;快照之外的用户在降级中下单之后,
+ * 他在redis中的订单写入时会违反唯一索引,重试用完之后票据改为failed,用户只保留降级的订单
+ */
+@Slf4j
+@Component
+public class SeckillDbFallback {
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private IIdWorker idWorker;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisCircuitBreaker;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private SeckillTickets seckillTickets;
+
+    @Resource
+    private SeckillOrderPipeline seckillOrderPipeline;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${comments.seckill.degrade.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个节点同时在数据库中秒杀的请求数
+     */
+    @Value("${comments.seckill.degrade.permits:20}")
+    private int permits;
+
+    /**
+     * 等待信号量的最长时间
+     */
+    @Value("${comments.seckill.degrade.acquire-millis:50}")
+    private long acquireMillis;
+
+    /**
+     * 一张优惠券最多加载多少个pending用户,超过之后这张优惠券只检查订单表和这个节点上的订单
+     */
+    @Value("${comments.seckill.degrade.max-pending-users:1000}")
+    private int maxPendingUsers;
+
+    private Semaphore semaphore;
+
+    /**
+     * 最近一次刷新的还在写入中的订单
+     */
+    private volatile PendingSnapshot pendingSnapshot;
+
+    /**
+     * 降级期间下单的秒杀券,redis恢复之后需要补写
+     */
+    private final Set<Long> degraded = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        semaphore = new Semaphore(permits);
+        redisCircuitBreaker.addRecoveryTask(this::restore);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 在数据库中秒杀
+     * @return 和redis秒杀相同的结果,成功时返回订单id,订单已经写入数据库
+     */
+    public Result seckill(Long voucherId, Long userId) {
+        try {
+            if (!semaphore.tryAcquire(acquireMillis, TimeUnit.MILLISECONDS)) {
+                meterRegistry.counter("seckill.degrade.rejected").increment();
+                return Result.fail("系统繁忙,请稍后再试!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.fail("系统繁忙,请稍后再试!");
+        }
+        try {
+            SeckillVoucher voucher = seckillVoucherMapper.getSeckillVoucherById(voucherId);
+            if (voucher == null) {
+                return Result.fail("秒杀不存在或者已经结束!");
+            }
+            LocalDateTime now = LocalDateTime.now();
+            if (now.isBefore(voucher.getBeginTime())) {
+                return Result.fail("秒杀尚未开始!");
+            }
+            if (now.isAfter(voucher.getEndTime())) {
+                return Result.fail("秒杀已经结束!");
+            }
+            if (voucher.getFallbackStock() == null || voucher.getFallbackStock() <= 0) {
+                // 没有预留库存,其他节点可能还在redis中秒杀,不能在数据库中卖
+                meterRegistry.counter("seckill.degrade.rejected").increment();
+                return Result.fail("系统繁忙,请稍后再试!");
+            }
+            if (pendingUsers(voucherId).contains(userId)) {
+                return Result.fail("你已经购买过了!!");
+            }
+            // redis的id生成器号段用完之后也不可用,降级时建议使用雪花算法的id生成器
+            long orderId = idWorker.nextID("order");
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setVoucherId(voucherId);
+            voucherOrder.setUserId(userId);
+            Result result = transactionTemplate.execute(status -> {
+                // 先扣减预留库存拿到秒杀券的行锁,之后的重复下单检查和插入不会和同一张券的其他请求交错
+                if (!seckillVoucherMapper.updateFallbackStock(voucherId)) {
+                    meterRegistry.counter("seckill.degrade.rejected").increment();
+                    return Result.fail("系统繁忙,请稍后再试!");
+                }
+                if (voucherOrderMapper.countOrderByUserIdAndVoucherId(userId, voucherId) > 0) {
+                    status.setRollbackOnly();
+                    return Result.fail("你已经购买过了!!");
+                }
+                voucherOrderMapper.addVoucherOrder(voucherOrder);
+                return Result.ok(orderId);
+            });
+            if (result != null && Boolean.TRUE.equals(result.getSuccess())) {
+                degraded.add(voucherId);
+                meterRegistry.counter("seckill.degrade.orders").increment();
+            }
+            return result;
+        } catch (DuplicateKeyException e) {
+            return Result.fail("你已经购买过了!!");
+        } catch (Exception e) {
+            log.error("数据库降级秒杀失败,优惠券:{},用户:{}", voucherId, userId, e);
+            return Result.fail("系统繁忙,请稍后再试!");
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * 这张优惠券还没有写入数据库的订单的用户,redis故障时使用故障之前最后一次刷新的快照
+     */
+    private Set<Long> pendingUsers(Long voucherId) {
+        Set<Long> users = new HashSet<>(seckillOrderPipeline.inFlightUsers(voucherId));
+        PendingSnapshot snapshot = pendingSnapshot;
+        if (snapshot != null) {
+            users.addAll(snapshot.users.getOrDefault(voucherId, Collections.emptySet()));
+        }
+        return users;
+    }
+
+    /**
+     * redis可用的时候刷新所有节点还在写入中的订单,快照之后、故障之前秒杀成功的订单不在快照中,
+     * 这些用户在降级中重复下单时由唯一索引兜底
+     */
+    @Scheduled(fixedDelayString = "${comments.seckill.degrade.pending-refresh-millis:1000}")
+    public void refreshPending() {
+        if (!enabled || redisCircuitBreaker.isOpen()) {
+            return;
+        }
+        try {
+            Map<Long, Set<Long>> users = new HashMap<>();
+            seckillTickets.pendingCounts().forEach((voucherId, count) -> {
+                if (count <= maxPendingUsers) {
+                    users.put(voucherId, seckillTickets.pendingUsers(voucherId));
+                }
+            });
+            pendingSnapshot = new PendingSnapshot(users);
+        } catch (Exception e) {
+            log.debug("刷新还在写入中的秒杀订单失败", e);
+        }
+    }
+
+    /**
+     * 熔断器关闭之后仍在执行的降级请求,由定时任务补写
+     */
+    @Scheduled(fixedDelayString = "${comments.redis.breaker.probe-millis:1000}")
+    public void restoreRemaining() {
+        if (degraded.isEmpty() || redisCircuitBreaker.isOpen()) {
+            return;
+        }
+        try {
+            restore();
+        } catch (Exception e) {
+            log.error("补写降级期间的订单失败", e);
+        }
+    }
+
+    /**
+     * 把降级期间的订单补写到redis,失败的秒杀券保留下来重试
+     */
+    private void restore() {
+        for (Long voucherId : degraded) {
+            degraded.remove(voucherId);
+            try {
+                seckillReconciler.restoreOrders(voucherId);
+            } catch (RuntimeException e) {
+                degraded.add(voucherId);
+                throw e;
+            }
+        }
+    }
+
+    private static class PendingSnapshot {
+        /**
+         * 优惠券id -> pending用户,用户太多的优惠券不加载
+         */
+        private final Map<Long, Set<Long>> users;
+
+        private PendingSnapshot(Map<Long, Set<Long>> users) {
+            this.users = users;
+        }
+    }
+}
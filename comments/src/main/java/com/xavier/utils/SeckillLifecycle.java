@@ -0,0 +1,271 @@
+package com.xavier.utils;
+
+import com.xavier.entity.SeckillVoucher;
+import com.xavier.mapper.SeckillVoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.xavier.utils.RedisConstants.SECKILL_LIFECYCLE_LOCK_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_LIFECYCLE_LOCK_TTL;
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀活动的生命周期调度
+ * 秒杀开始之前preload-minutes分钟把库存和秒杀时间窗口写入redis,秒杀脚本根据时间窗口拒绝不在秒杀时间内的请求;
+ * 秒杀结束grace-minutes分钟之后,等正在写入的订单都落库了,先和数据库对账,确认已购买的用户都有订单之后清理redis中的key;
+ * 对账一直有差异的秒杀券保留key等待修复,超过force-purge-hours之后强制清理;
+ * 启动时检查还没有结束的秒杀券是否有分片之前的库存key,新节点不会读取这些key,继续启动会重复售卖,
+ * 所以默认拒绝启动,设置migrate-legacy之后在所有旧节点下线的前提下迁移到分片key
+ */
+@Slf4j
+@Component
+public class SeckillLifecycle {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    @Value("${comments.seckill.lifecycle.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 秒杀开始之前多少分钟预热
+     */
+    @Value("${comments.seckill.lifecycle.preload-minutes:10}")
+    private long preloadMinutes;
+
+    /**
+     * 秒杀结束之后多少分钟清理
+     */
+    @Value("${comments.seckill.lifecycle.grace-minutes:10}")
+    private long graceMinutes;
+
+    /**
+     * 秒杀结束之后超过多少小时,对账有差异也强制清理
+     */
+    @Value("${comments.seckill.lifecycle.force-purge-hours:24}")
+    private long forcePurgeHours;
+
+    /**
+     * 只清理结束时间在最近多少天之内的秒杀券,更早的已经清理过了
+     */
+    @Value("${comments.seckill.lifecycle.days:7}")
+    private int days;
+
+    /**
+     * 是否把分片之前的库存和已购买用户迁移到分片key,必须在所有旧版本节点下线之后才能打开
+     */
+    @Value("${comments.seckill.stock.migrate-legacy:false}")
+    private boolean migrateLegacy;
+
+    @PostConstruct
+    private void checkLegacyKeys() throws InterruptedException {
+        List<Long> legacy = legacyVouchers();
+        if (legacy.isEmpty()) {
+            return;
+        }
+        if (!migrateLegacy) {
+            throw new IllegalStateException("秒杀券" + legacy + "在redis中还有分片之前的库存key,"
+                    + "请在所有旧版本节点下线之后设置comments.seckill.stock.migrate-legacy=true迁移");
+        }
+        // 多个节点同时启动时只让一个节点迁移,其他节点等它迁移完成
+        ILock lock = new SimpleRedisLock(SECKILL_LIFECYCLE_LOCK_KEY, stringRedisTemplate);
+        while (!lock.tryLock(SECKILL_LIFECYCLE_LOCK_TTL)) {
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        try {
+            for (Long voucherId : legacyVouchers()) {
+                migrate(voucherId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Long> legacyVouchers() {
+        List<Long> legacy = new ArrayList<>();
+        for (SeckillVoucher voucher : seckillVoucherMapper.getUnfinishedSeckillVouchers()) {
+            Long voucherId = voucher.getVoucherId();
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))
+                    || Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_KEY + voucherId))) {
+                legacy.add(voucherId);
+            }
+        }
+        return legacy;
+    }
+
+    /**
+     * 旧的库存覆盖分片库存,预热时写入的是异步扣减的数据库库存,可能比redis中的多;
+     * 已购买的用户写入各自所在的分片,最后删除旧的key
+     */
+    private void migrate(Long voucherId) {
+        String stockKey = SECKILL_STOCK_KEY + voucherId;
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        String stock = stringRedisTemplate.opsForValue().get(stockKey);
+        if (stock != null) {
+            seckillStockShards.initStock(voucherId, Math.max(Long.parseLong(stock), 0), false);
+        }
+        Set<String> users = stringRedisTemplate.opsForSet().members(orderKey);
+        if (users != null && !users.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String userId : users) {
+                    conn.sAdd(seckillStockShards.orderKey(voucherId, seckillStockShards.homeShard(Long.valueOf(userId))), userId);
+                }
+                return null;
+            });
+        }
+        stringRedisTemplate.delete(Arrays.asList(stockKey, orderKey));
+        log.warn("秒杀券{}的库存{}和{}个已购买用户已经迁移到分片key", voucherId, stock, users == null ? 0 : users.size());
+    }
+
+    @Scheduled(fixedDelayString = "${comments.seckill.lifecycle.interval-millis:30000}")
+    public void schedule() {
+        if (!enabled) {
+            return;
+        }
+        // 多个节点同时调度没有意义,只让拿到锁的节点去做
+        ILock lock = new SimpleRedisLock(SECKILL_LIFECYCLE_LOCK_KEY, stringRedisTemplate);
+        if (!lock.tryLock(SECKILL_LIFECYCLE_LOCK_TTL)) {
+            return;
+        }
+        try {
+            preloadDue();
+            purgeEnded();
+        } catch (Exception e) {
+            log.error("秒杀活动生命周期调度失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 预热即将开始以及正在进行的秒杀券
+     * @return 预热的秒杀券数量
+     */
+    public int preloadDue() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.getSeckillVouchersBeginBefore(now.plusMinutes(preloadMinutes), now);
+        preload(vouchers);
+        return vouchers.size();
+    }
+
+    /**
+     * 新增的秒杀券在预热时间内的话立即预热,否则等待调度
+     */
+    public void preloadIfDue(SeckillVoucher voucher) {
+        LocalDateTime now = LocalDateTime.now();
+        if (!voucher.getBeginTime().isAfter(now.plusMinutes(preloadMinutes)) && voucher.getEndTime().isAfter(now)) {
+            preload(Collections.singletonList(voucher));
+        }
+    }
+
+    /**
+     * 秒杀券的库存是否已经在redis中了
+     */
+    public boolean isPreloaded(Long voucherId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(seckillStockShards.windowKey(voucherId, 0)));
+    }
+
+    /**
+     * 写入库存和时间窗口
+     * redis中的库存在秒杀时会被扣减,数据库中的库存是异步扣减的,所以库存只在redis中不存在的时候才写入,不能覆盖;
+     * 时间窗口每次都覆盖,修改秒杀时间之后下一次调度生效
+     */
+    public void preload(List<SeckillVoucher> vouchers) {
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> stocks = new HashMap<>();
+        for (SeckillVoucher voucher : vouchers) {
+            stocks.put(voucher.getVoucherId(), voucher.getStock().longValue());
+        }
+        seckillStockShards.initStock(stocks, true);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                Map<String, String> window = new HashMap<>();
+                window.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+                window.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+                for (int i = 0; i < seckillStockShards.getShards(); i++) {
+                    conn.hMSet(seckillStockShards.windowKey(voucher.getVoucherId(), i), window);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 清理已经结束的秒杀券
+     * @return 清理的秒杀券数量
+     */
+    public int purgeEnded() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.getSeckillVouchersEndedBetween(
+                now.minusDays(days), now.minusMinutes(graceMinutes));
+        int purged = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            if (!isPreloaded(voucherId)) {
+                continue;
+            }
+            // 对账没有差异说明redis中已购买的用户和数据库中的订单一致,用户已经归档在订单表中,可以清理
+            if (seckillReconciler.reconcile(voucherId)) {
+                if (voucher.getEndTime().isAfter(now.minusHours(forcePurgeHours))) {
+                    log.warn("秒杀券{}对账存在差异,暂不清理", voucherId);
+                    continue;
+                }
+                log.error("秒杀券{}结束超过{}小时对账仍然存在差异,强制清理", voucherId, forcePurgeHours);
+            }
+            purge(voucherId);
+            purged++;
+        }
+        return purged;
+    }
+
+    /**
+     * 删除秒杀券所有分片的库存、已购买用户、时间窗口和订单stream,以及所有节点上的售罄标记
+     */
+    public void purge(Long voucherId) {
+        // 先取消登记,消费者线程不再读取这些stream
+        stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_STREAMS_KEY, voucherId.toString());
+        List<String> keys = new ArrayList<>(seckillStockShards.streamKeys(voucherId));
+        for (int i = 0; i < seckillStockShards.getShards(); i++) {
+            keys.add(seckillStockShards.windowKey(voucherId, i));
+            keys.add(seckillStockShards.stockKey(voucherId, i));
+            keys.add(seckillStockShards.orderKey(voucherId, i));
+        }
+        // 用户的集合可能很大,使用unlink在后台释放内存
+        stringRedisTemplate.unlink(keys);
+        seckillSoldOut.purge(voucherId);
+        log.info("秒杀券{}已经结束,清理redis中的key", voucherId);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,437 @@
+package com.xavier.utils;
+
+import com.xavier.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 秒杀订单的预写日志,内存队列的一个分区对应一个日志目录
+ * 订单按顺序追加到内存映射的段文件中,每条记录固定32字节: 魔数(4) + 订单id(8) + 用户id(8) + 优惠券id(8) + crc(4),
+ * 记录的序号就是它的offset;刷盘线程把并发追加的记录合并成一次force,追加的线程等待自己的记录刷盘之后返回;
+ * 写入数据库的线程只读取已经刷盘的记录,写完一批之后把读取位置记录到checkpoint文件,
+ * 重启时从checkpoint开始重放没有写入数据库的订单,checkpoint之前的段文件会被删除;
+ * 新的段文件需要用0填满并刷盘,由后台线程在当前段写满之前提前创建好,追加的线程切换段时不用在锁内等待磁盘
+ */
+@Slf4j
+public class SeckillOrderJournal implements Closeable {
+    private static final int RECORD_SIZE = 32;
+    private static final int MAGIC = 0x5345434B;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Path dir;
+    private final int segmentRecords;
+
+    /**
+     * 段文件的起始offset -> 段,追加、读取和删除段的时候都需要持有this的锁
+     */
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+    private final FileChannel checkpointChannel;
+
+    /**
+     * 下一条记录的offset,持有this的锁修改
+     */
+    private long writeOffset;
+
+    /**
+     * 已经刷盘的记录的结束offset
+     */
+    private volatile long flushedOffset;
+
+    /**
+     * 已经写入数据库的记录的结束offset,只有写入数据库的线程修改
+     */
+    private volatile long checkpointOffset;
+
+    /**
+     * 下一次读取的offset,只有写入数据库的线程使用
+     */
+    private long readOffset;
+
+    private final Object flushMonitor = new Object();
+
+    private final Thread flusher;
+
+    /**
+     * 提前创建下一个段文件的线程
+     */
+    private final ExecutorService allocator;
+
+    /**
+     * 提前创建的段文件和它的起始offset,持有this的锁修改
+     */
+    private Future<MappedByteBuffer> preallocated;
+
+    private long preallocatedBase = -1;
+
+    private volatile boolean closed;
+
+    public SeckillOrderJournal(Path dir, int segmentRecords) throws IOException {
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        Files.createDirectories(dir);
+        checkpointChannel = FileChannel.open(dir.resolve(CHECKPOINT_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        flusher = new Thread(this::flushLoop, "seckill-journal-flusher-" + dir.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+        allocator = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "seckill-journal-allocator-" + dir.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (this) {
+            Map.Entry<Long, MappedByteBuffer> last = segments.lastEntry();
+            preallocate(last == null ? writeOffset : last.getKey() + segmentRecords);
+        }
+    }
+
+    /**
+     * 追加一个订单
+     * @return 这条记录的结束offset,用来等待刷盘
+     */
+    public long append(VoucherOrder voucherOrder) throws IOException {
+        long end;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("日志已经关闭:" + dir);
+            }
+            long offset = writeOffset;
+            Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(offset);
+            if (segment == null || offset >= segment.getKey() + segmentRecords) {
+                segment = nextSegment(offset);
+            }
+            MappedByteBuffer buffer = segment.getValue();
+            int position = (int) (offset - segment.getKey()) * RECORD_SIZE;
+            buffer.putInt(position, MAGIC);
+            buffer.putLong(position + 4, voucherOrder.getId());
+            buffer.putLong(position + 12, voucherOrder.getUserId());
+            buffer.putLong(position + 20, voucherOrder.getVoucherId());
+            buffer.putInt(position + 28, crc(buffer, position));
+            end = offset + 1;
+            writeOffset = end;
+        }
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        return end;
+    }
+
+    /**
+     * 等待记录刷盘,多个线程的等待由刷盘线程的一次force一起完成
+     * @return 是否在超时之前刷盘了
+     */
+    public boolean awaitFlushed(long offset, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (flushMonitor) {
+            while (flushedOffset < offset) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(flushMonitor, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取下一批已经刷盘的订单,最多等待waitMillis攒够max条,超时之后有多少读多少
+     * 读取之后需要调用commit记录checkpoint,没有commit的订单在重启之后会被重放
+     */
+    public List<VoucherOrder> read(int max, long waitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        synchronized (flushMonitor) {
+            while (flushedOffset - readOffset < max) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || closed) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(flushMonitor, remaining);
+            }
+        }
+        long end = Math.min(flushedOffset, readOffset + max);
+        List<VoucherOrder> orders = new ArrayList<>((int) (end - readOffset));
+        for (long offset = readOffset; offset < end; offset++) {
+            orders.add(record(offset));
+        }
+        readOffset = end;
+        return orders;
+    }
+
+    /**
+     * 查询一张优惠券已经追加还没有写入数据库的订单,包括已经读取还没有commit的订单
+     * 在锁内取checkpoint、写入位置和这段范围内的段,之后commit删除的段仍然可以从快照中读取,映射在文件删除之后仍然有效
+     */
+    public List<VoucherOrder> unpersisted(Long voucherId) {
+        long start;
+        long end;
+        TreeMap<Long, MappedByteBuffer> snapshot;
+        synchronized (this) {
+            start = checkpointOffset;
+            end = writeOffset;
+            Long from = segments.floorKey(start);
+            snapshot = new TreeMap<>(from == null ? segments : segments.tailMap(from, true));
+        }
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (long offset = start; offset < end; offset++) {
+            Map.Entry<Long, MappedByteBuffer> segment = snapshot.floorEntry(offset);
+            VoucherOrder voucherOrder = record(segment.getKey(), segment.getValue(), offset);
+            if (voucherId.equals(voucherOrder.getVoucherId())) {
+                orders.add(voucherOrder);
+            }
+        }
+        return orders;
+    }
+
+    private VoucherOrder record(long offset) {
+        Map.Entry<Long, MappedByteBuffer> segment;
+        synchronized (this) {
+            segment = segments.floorEntry(offset);
+        }
+        return record(segment.getKey(), segment.getValue(), offset);
+    }
+
+    private static VoucherOrder record(long base, ByteBuffer buffer, long offset) {
+        int position = (int) (offset - base) * RECORD_SIZE;
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(buffer.getLong(position + 4));
+        voucherOrder.setUserId(buffer.getLong(position + 12));
+        voucherOrder.setVoucherId(buffer.getLong(position + 20));
+        return voucherOrder;
+    }
+
+    /**
+     * 已经读取的订单都写入数据库了,记录checkpoint并删除已经消费完的段文件
+     */
+    public void commit() throws IOException {
+        if (readOffset == checkpointOffset) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, readOffset);
+        checkpointChannel.write(buffer, 0);
+        checkpointChannel.force(false);
+        checkpointOffset = readOffset;
+        synchronized (this) {
+            while (!segments.isEmpty()) {
+                long base = segments.firstKey();
+                // 正在写入的段不删除
+                if (base + segmentRecords > checkpointOffset || base + segmentRecords > writeOffset) {
+                    break;
+                }
+                segments.remove(base);
+                Files.deleteIfExists(segmentPath(base));
+            }
+        }
+    }
+
+    /**
+     * 已经追加还没有写入数据库的订单数
+     */
+    public long getPending() {
+        return flushedOffset - checkpointOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        allocator.shutdownNow();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpointChannel.close();
+    }
+
+    /**
+     * 刷盘线程,每次把当前所有已经追加的记录一起刷盘
+     */
+    private void flushLoop() {
+        while (true) {
+            try {
+                synchronized (flushMonitor) {
+                    while (!closed && flushedOffset >= currentWriteOffset()) {
+                        flushMonitor.wait();
+                    }
+                }
+                long target;
+                List<MappedByteBuffer> dirty = new ArrayList<>();
+                synchronized (this) {
+                    target = writeOffset;
+                    Long from = segments.floorKey(flushedOffset);
+                    dirty.addAll((from == null ? segments : segments.tailMap(from, true)).values());
+                }
+                for (MappedByteBuffer buffer : dirty) {
+                    buffer.force();
+                }
+                synchronized (flushMonitor) {
+                    flushedOffset = target;
+                    flushMonitor.notifyAll();
+                }
+                if (closed && flushedOffset >= currentWriteOffset()) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // 刷盘失败时追加的线程会等待超时,下一次追加的时候重试
+                log.error("订单日志刷盘失败:{}", dir, e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized long currentWriteOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * 从checkpoint开始找到最后一条完整的记录,确定下一条记录的位置
+     */
+    private void recover() throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(8);
+        long checkpointValue = checkpointChannel.read(checkpoint, 0) == 8 ? checkpoint.getLong(0) : 0;
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        bases.sort(Long::compare);
+        for (long base : bases) {
+            if (base + segmentRecords <= checkpointValue) {
+                Files.deleteIfExists(segmentPath(base));
+            } else {
+                segments.put(base, map(base, false));
+            }
+        }
+        long offset = checkpointValue;
+        while (true) {
+            Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(offset);
+            if (segment == null || offset >= segment.getKey() + segmentRecords) {
+                break;
+            }
+            int position = (int) (offset - segment.getKey()) * RECORD_SIZE;
+            MappedByteBuffer buffer = segment.getValue();
+            if (buffer.getInt(position) != MAGIC || buffer.getInt(position + 28) != crc(buffer, position)) {
+                break;
+            }
+            offset++;
+        }
+        // 最后一条完整记录之后的段是不完整的写入,丢弃
+        for (Long base : new ArrayList<>(segments.tailMap(offset, false).keySet())) {
+            segments.remove(base);
+            Files.deleteIfExists(segmentPath(base));
+        }
+        writeOffset = offset;
+        flushedOffset = offset;
+        checkpointOffset = checkpointValue;
+        readOffset = checkpointValue;
+        if (offset > checkpointValue) {
+            log.info("订单日志{}有{}个订单没有写入数据库,重新写入", dir, offset - checkpointValue);
+        }
+    }
+
+    /**
+     * 切换到下一个段,使用提前创建好的段文件,还没有创建完的等待它完成,没有提前创建或者创建失败时同步创建
+     * 切换之后马上开始创建再下一个段
+     */
+    private Map.Entry<Long, MappedByteBuffer> nextSegment(long base) throws IOException {
+        MappedByteBuffer buffer = null;
+        if (preallocated != null && preallocatedBase == base) {
+            try {
+                buffer = preallocated.get();
+            } catch (ExecutionException e) {
+                log.warn("提前创建订单日志的段文件失败,重新创建:{}", segmentPath(base), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待创建段文件时被中断:" + segmentPath(base), e);
+            }
+        }
+        preallocated = null;
+        if (buffer == null) {
+            buffer = map(base, true);
+        }
+        segments.put(base, buffer);
+        preallocate(base + segmentRecords);
+        return segments.floorEntry(base);
+    }
+
+    /**
+     * 在后台创建起始offset为base的段文件,创建好的段文件在切换之前不放入segments,
+     * 重启时它位于最后一条完整记录之后,会被当作不完整的写入删除
+     */
+    private void preallocate(long base) {
+        if (closed) {
+            return;
+        }
+        preallocatedBase = base;
+        preallocated = allocator.submit(() -> map(base, true));
+    }
+
+    /**
+     * 映射一个段文件,新建的段先用0填满,提前占用磁盘空间,防止写入映射内存时磁盘已满
+     */
+    private MappedByteBuffer map(long base, boolean create) throws IOException {
+        long size = (long) segmentRecords * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(segmentPath(base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (create) {
+                ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+                long position = 0;
+                while (position < size) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                    position += channel.write(zeros, position);
+                }
+                channel.force(true);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return dir.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    private static int crc(ByteBuffer buffer, int position) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 28; i++) {
+            crc.update(buffer.get(position + i));
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,507 @@
+package com.xavier.utils;
+
+import com.xavier.entity.VoucherOrder;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 秒杀订单的异步写入管道
+ * 按照优惠券id分成多个分区,每个分区一个队列和一个工作线程,同一张优惠券的订单总是由同一个线程处理;
+ * 工作线程每次最多攒batchSize个订单或者等待batchWaitMillis毫秒,然后交给处理方法一次写入数据库
+ * 开启journal之后订单不放在内存队列中,而是追加到每个分区的预写日志,刷盘之后才返回,
+ * 堆内存不随积压的订单增长,重启之后从日志中重放没有写入数据库的订单;
+ * 写入失败的订单按照退避时间原地重试,日志的checkpoint不会越过没有写入的订单,
+ * 重试retry.max-attempts次仍然失败的订单重新追加到日志(或者队列)的尾部,不一直阻塞后面的订单,
+ * 放回尾部retry.max-requeues次之后仍然失败的订单不再重试,交给lostHandler,日志的checkpoint越过它们
+ */
+@Slf4j
+@Component
+public class SeckillOrderPipeline {
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${comments.seckill.order.partitions:4}")
+    private int partitions;
+
+    /**
+     * 所有分区的队列容量之和
+     */
+    @Value("${comments.seckill.order.queue-capacity:1048576}")
+    private int queueCapacity;
+
+    /**
+     * 一批最多写入的订单数
+     */
+    @Value("${comments.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 一批最多等待的时间
+     */
+    @Value("${comments.seckill.order.batch-wait-millis:50}")
+    private long batchWaitMillis;
+
+    /**
+     * 是否使用磁盘上的预写日志代替内存队列
+     */
+    @Value("${comments.seckill.order.journal.enabled:true}")
+    private boolean journalEnabled;
+
+    @Value("${comments.seckill.order.journal.dir:data/seckill-journal}")
+    private String journalDir;
+
+    /**
+     * 每个段文件的记录数,每条记录32字节
+     */
+    @Value("${comments.seckill.order.journal.segment-records:262144}")
+    private int segmentRecords;
+
+    /**
+     * 等待刷盘时每隔多久告警一次,订单已经追加到日志,重启之后一定会被重放,所以会一直等到刷盘为止
+     */
+    @Value("${comments.seckill.order.journal.flush-wait-millis:1000}")
+    private long flushWaitMillis;
+
+    /**
+     * 写入失败的订单原地重试的次数,包括第一次写入
+     */
+    @Value("${comments.seckill.order.retry.max-attempts:5}")
+    private int retryMaxAttempts;
+
+    /**
+     * 第一次重试之前等待的时间,之后每次翻倍
+     */
+    @Value("${comments.seckill.order.retry.backoff-millis:200}")
+    private long retryBackoffMillis;
+
+    @Value("${comments.seckill.order.retry.max-backoff-millis:5000}")
+    private long retryMaxBackoffMillis;
+
+    /**
+     * 写入失败的订单最多放回尾部的次数,节点重启之后重新计数
+     */
+    @Value("${comments.seckill.order.retry.max-requeues:10}")
+    private int retryMaxRequeues;
+
+    private List<BlockingQueue<VoucherOrder>> queues;
+
+    private List<SeckillOrderJournal> journals;
+
+    private List<Thread> workers;
+
+    private volatile boolean running;
+
+    private DistributionSummary batchSizeSummary;
+
+    private Timer batchTimer;
+
+    /**
+     * 处理最终没有写入数据库的订单的方法
+     */
+    private Consumer<List<VoucherOrder>> lostHandler;
+
+    /**
+     * 订单id -> 已经放回尾部的次数,写入成功或者不再重试之后删除
+     */
+    private final Map<Long, Integer> requeues = new ConcurrentHashMap<>();
+
+    /**
+     * 启动所有分区的工作线程
+     * @param handler 批量写入订单的方法,同一批中可能包含多张优惠券的订单,返回写入失败的订单
+     * @param lostHandler 处理最终没有写入数据库的订单,例如记录下来并把票据改为failed
+     */
+    public synchronized void start(Function<List<VoucherOrder>, List<VoucherOrder>> handler,
+                                   Consumer<List<VoucherOrder>> lostHandler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        this.lostHandler = lostHandler;
+        batchSizeSummary = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每一批写入数据库的订单数")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        batchTimer = Timer.builder("seckill.order.batch.write")
+                .description("每一批订单写入数据库的耗时")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        workers = new ArrayList<>(partitions);
+        if (journalEnabled) {
+            startJournals(handler);
+            return;
+        }
+        queues = new ArrayList<>(partitions);
+        int capacity = Math.max(1, queueCapacity / partitions);
+        for (int i = 0; i < partitions; i++) {
+            BlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<>(capacity);
+            queues.add(queue);
+            Gauge.builder("seckill.order.queue.depth", queue, BlockingQueue::size)
+                    .tag("partition", String.valueOf(i))
+                    .description("等待写入数据库的订单数")
+                    .register(meterRegistry);
+            Thread worker = new Thread(() -> work(queue, handler), "seckill-order-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * 打开每个分区的日志并启动工作线程
+     * 分区数变少之后,多出来的分区的日志也要打开,把剩余的订单写完
+     */
+    private void startJournals(Function<List<VoucherOrder>, List<VoucherOrder>> handler) {
+        Path root = Paths.get(journalDir);
+        int existing = 0;
+        while (Files.isDirectory(root.resolve("partition-" + existing))) {
+            existing++;
+        }
+        journals = new ArrayList<>();
+        for (int i = 0; i < Math.max(partitions, existing); i++) {
+            SeckillOrderJournal journal;
+            try {
+                journal = new SeckillOrderJournal(root.resolve("partition-" + i), segmentRecords);
+            } catch (IOException e) {
+                throw new IllegalStateException("打开订单日志失败:" + root.resolve("partition-" + i), e);
+            }
+            journals.add(journal);
+            Gauge.builder("seckill.order.queue.depth", journal, SeckillOrderJournal::getPending)
+                    .tag("partition", String.valueOf(i))
+                    .description("等待写入数据库的订单数")
+                    .register(meterRegistry);
+            Thread worker = new Thread(() -> work(journal, handler), "seckill-order-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * 提交一个订单
+     * @return 队列已满或者写入日志失败的时候返回false
+     */
+    public boolean submit(VoucherOrder voucherOrder) {
+        if (journals == null) {
+            return queues.get(partitionOf(voucherOrder.getVoucherId())).offer(voucherOrder);
+        }
+        SeckillOrderJournal journal = journals.get(partitionOf(voucherOrder.getVoucherId()));
+        long offset;
+        try {
+            offset = journal.append(voucherOrder);
+        } catch (IOException | RuntimeException e) {
+            log.error("订单写入日志失败:{}", voucherOrder, e);
+            return false;
+        }
+        // 订单已经在日志中了,重启之后一定会被重放写入数据库,调用方不能回滚,只能等到刷盘之后再返回;
+        // 停止的时候close会把已经追加的记录刷盘
+        try {
+            while (!journal.awaitFlushed(offset, flushWaitMillis)) {
+                if (!running) {
+                    break;
+                }
+                log.warn("订单日志刷盘超时,继续等待:{}", voucherOrder.getId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * 查询一张优惠券在这个节点上还没有写入数据库的订单的用户,同一张优惠券的订单都在同一个分区
+     * 正在写入的一批已经从内存队列中取出来了,不在结果中,由票据的pending记录覆盖
+     */
+    public Set<Long> inFlightUsers(Long voucherId) {
+        Set<Long> users = new HashSet<>();
+        if (!running) {
+            return users;
+        }
+        int partition = partitionOf(voucherId);
+        if (journals == null) {
+            for (VoucherOrder voucherOrder : queues.get(partition)) {
+                if (voucherId.equals(voucherOrder.getVoucherId())) {
+                    users.add(voucherOrder.getUserId());
+                }
+            }
+            return users;
+        }
+        // 分区数变少之前的日志中可能还有这张优惠券的订单
+        for (SeckillOrderJournal journal : journals) {
+            for (VoucherOrder voucherOrder : journal.unpersisted(voucherId)) {
+                users.add(voucherOrder.getUserId());
+            }
+        }
+        return users;
+    }
+
+    private int partitionOf(Long voucherId) {
+        return Math.floorMod(voucherId.hashCode(), partitions);
+    }
+
+    private void work(BlockingQueue<VoucherOrder> queue, Function<List<VoucherOrder>, List<VoucherOrder>> handler) {
+        List<VoucherOrder> batch = new ArrayList<>(batchSize);
+        // 停止之后把队列中剩余的订单写完再退出
+        while (running || !queue.isEmpty()) {
+            try {
+                VoucherOrder first = queue.poll(batchWaitMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // 攒够一批或者等待超时
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    VoucherOrder next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // 停止的时候会被中断,继续处理已经取出来的订单
+                Thread.currentThread().interrupt();
+            }
+            if (!batch.isEmpty()) {
+                List<VoucherOrder> unwritten = writeWithRetry(batch, handler, failed -> requeue(queue, failed));
+                if (!unwritten.isEmpty()) {
+                    lost(unwritten);
+                }
+                batch.clear();
+            }
+            Thread.interrupted();
+        }
+    }
+
+    private void work(SeckillOrderJournal journal, Function<List<VoucherOrder>, List<VoucherOrder>> handler) {
+        // 停止的时候不需要写完,剩余的订单重启之后从日志重放
+        while (running) {
+            List<VoucherOrder> batch;
+            try {
+                batch = journal.read(batchSize, batchWaitMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            // 停止时还没有写入的订单不能记录checkpoint,重启之后连同这一批已经写入的订单一起重放,已经存在的订单会被跳过
+            if (!writeWithRetry(batch, handler, failed -> reappend(journal, failed)).isEmpty()) {
+                return;
+            }
+            // 停止时的中断不能打断checkpoint的写入,FileChannel在中断时会被关闭
+            boolean interrupted = Thread.interrupted();
+            try {
+                journal.commit();
+            } catch (IOException e) {
+                log.error("记录订单日志的checkpoint失败", e);
+            }
+            if (interrupted) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写入一批订单,失败的订单按照退避时间原地重试,重试max-attempts次之后交给requeue放回尾部,放回失败的继续重试;
+     * 已经放回尾部max-requeues次的订单不再重试,交给lostHandler
+     * @return 停止时还没有写入的订单,正常情况下返回空列表
+     */
+    private List<VoucherOrder> writeWithRetry(List<VoucherOrder> batch, Function<List<VoucherOrder>, List<VoucherOrder>> handler,
+                                              Predicate<List<VoucherOrder>> requeue) {
+        List<VoucherOrder> failed = write(batch, handler);
+        long backoff = retryBackoffMillis;
+        for (int attempt = 1; !failed.isEmpty(); attempt++) {
+            if (attempt >= retryMaxAttempts) {
+                failed = dropExhausted(failed);
+                if (failed.isEmpty()) {
+                    break;
+                }
+                if (requeue.test(failed)) {
+                    forgetRequeues(batch, failed);
+                    for (VoucherOrder voucherOrder : failed) {
+                        requeues.merge(voucherOrder.getId(), 1, Integer::sum);
+                    }
+                    meterRegistry.counter("seckill.order.requeued").increment(failed.size());
+                    log.warn("订单重试{}次仍然写入失败,放回尾部稍后重试,共{}个订单", attempt, failed.size());
+                    return Collections.emptyList();
+                }
+            }
+            if (!running) {
+                return failed;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                // 停止的时候会被中断
+                return failed;
+            }
+            backoff = Math.min(backoff * 2, retryMaxBackoffMillis);
+            failed = write(failed, handler);
+        }
+        forgetRequeues(batch, failed);
+        return failed;
+    }
+
+    /**
+     * 把已经放回尾部max-requeues次的订单交给lostHandler
+     * @return 剩下还可以继续重试的订单
+     */
+    private List<VoucherOrder> dropExhausted(List<VoucherOrder> failed) {
+        if (requeues.isEmpty()) {
+            return failed;
+        }
+        List<VoucherOrder> retryable = new ArrayList<>(failed.size());
+        List<VoucherOrder> exhausted = new ArrayList<>();
+        for (VoucherOrder voucherOrder : failed) {
+            if (requeues.getOrDefault(voucherOrder.getId(), 0) >= retryMaxRequeues) {
+                requeues.remove(voucherOrder.getId());
+                exhausted.add(voucherOrder);
+            } else {
+                retryable.add(voucherOrder);
+            }
+        }
+        if (!exhausted.isEmpty()) {
+            log.error("订单放回尾部{}次之后仍然写入失败,不再重试,共{}个订单", retryMaxRequeues, exhausted.size());
+            lost(exhausted);
+        }
+        return retryable;
+    }
+
+    /**
+     * 删除这一批中已经写入的订单的放回次数
+     */
+    private void forgetRequeues(List<VoucherOrder> batch, List<VoucherOrder> failed) {
+        if (requeues.isEmpty()) {
+            return;
+        }
+        Set<Long> failedIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : failed) {
+            failedIds.add(voucherOrder.getId());
+        }
+        for (VoucherOrder voucherOrder : batch) {
+            if (!failedIds.contains(voucherOrder.getId())) {
+                requeues.remove(voucherOrder.getId());
+            }
+        }
+    }
+
+    /**
+     * 写入失败的订单重新追加到日志的尾部,刷盘之后才能记录越过原来位置的checkpoint
+     */
+    private boolean reappend(SeckillOrderJournal journal, List<VoucherOrder> failed) {
+        try {
+            long offset = 0;
+            for (VoucherOrder voucherOrder : failed) {
+                offset = journal.append(voucherOrder);
+            }
+            while (!journal.awaitFlushed(offset, flushWaitMillis)) {
+                if (!running) {
+                    return false;
+                }
+                log.warn("重新追加的订单日志刷盘超时,继续等待");
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("写入失败的订单重新追加到日志失败,继续原地重试,共{}个订单", failed.size(), e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 写入失败的订单放回内存队列的尾部,队列满了就没有地方可以放了,这些订单丢失,交给lostHandler,由对账归还库存
+     */
+    private boolean requeue(BlockingQueue<VoucherOrder> queue, List<VoucherOrder> failed) {
+        List<VoucherOrder> dropped = new ArrayList<>();
+        for (VoucherOrder voucherOrder : failed) {
+            if (!queue.offer(voucherOrder)) {
+                dropped.add(voucherOrder);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            lost(dropped);
+        }
+        return true;
+    }
+
+    private void lost(List<VoucherOrder> orders) {
+        meterRegistry.counter("seckill.order.lost").increment(orders.size());
+        log.error("订单没有写入数据库,订单丢失,共{}个订单:{}", orders.size(), orders);
+        try {
+            lostHandler.accept(orders);
+        } catch (Exception e) {
+            log.error("记录丢失的订单失败,共{}个订单", orders.size(), e);
+        }
+    }
+
+    /**
+     * @return 写入失败的订单
+     */
+    private List<VoucherOrder> write(List<VoucherOrder> batch, Function<List<VoucherOrder>, List<VoucherOrder>> handler) {
+        batchSizeSummary.record(batch.size());
+        long start = System.nanoTime();
+        try {
+            return handler.apply(batch);
+        } catch (Exception e) {
+            log.error("订单批量写入失败,共{}个订单", batch.size(), e);
+            return batch;
+        } finally {
+            batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        if (workers == null) {
+            return;
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (journals != null) {
+            for (SeckillOrderJournal journal : journals) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    log.warn("关闭订单日志失败", e);
+                }
+            }
+        }
+    }
+}
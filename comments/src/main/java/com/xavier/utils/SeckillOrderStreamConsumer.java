@@ -0,0 +1,581 @@
+package com.xavier.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.xavier.entity.VoucherOrder;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_LOST_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_LOST_MAX;
+
+/**
+ * 基于redis stream的秒杀订单消费者
+ * seckill.lua在扣减库存的同时把订单写入stream,这里使用消费者组读取订单批量写入数据库,写入成功之后才ack;
+ * 节点宕机之后,它没有ack的订单会在空闲超过claim-idle-millis之后被其他节点用XAUTOCLAIM认领重新写入,
+ * 写入失败的订单同样留在pending列表中等待重试,投递max-deliveries次之后仍然写入失败的订单交给lostHandler之后ack,
+ * 多个节点可以同时消费同一个stream;
+ * 没有ack的订单被MAXLEN裁剪掉之后已经无法写入了,认领之前把它们找出来ack,记录到丢失列表中,由对账归还库存;
+ * 每张秒杀券的每个库存分片有自己的stream,在redis集群中不能一次读取多个slot的stream,
+ * 所以消费者线程定时从seckill:order-streams中发现新的stream,按照stream的hash分给各个线程,轮流不阻塞地读取,
+ * 所有stream都没有新订单时等待poll-millis
+ */
+@Slf4j
+@Component
+public class SeckillOrderStreamConsumer {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    /**
+     * 每个节点上的消费者线程数,所有stream分给这些线程
+     */
+    @Value("${comments.seckill.order.stream.consumers:1}")
+    private int consumers;
+
+    /**
+     * 消费者名称的前缀,需要在节点重启前后保持不变,重启之后才能直接处理自己没有ack的订单,默认使用主机名
+     */
+    @Value("${comments.seckill.order.stream.consumer-name:}")
+    private String consumerName;
+
+    @Value("${comments.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 认领命令的超时时间
+     */
+    @Value("${comments.seckill.order.stream.block-millis:2000}")
+    private long blockMillis;
+
+    /**
+     * 所有stream都没有新订单时等待的时间
+     */
+    @Value("${comments.seckill.order.stream.poll-millis:50}")
+    private long pollMillis;
+
+    /**
+     * 多久发现一次新预热的秒杀券的stream
+     */
+    @Value("${comments.seckill.order.stream.refresh-millis:1000}")
+    private long refreshMillis;
+
+    /**
+     * pending的订单空闲超过这个时间之后认为它的消费者已经宕机或者写入失败,可以被认领重试
+     */
+    @Value("${comments.seckill.order.stream.claim-idle-millis:60000}")
+    private long claimIdleMillis;
+
+    /**
+     * 检查pending订单的间隔
+     */
+    @Value("${comments.seckill.order.stream.claim-interval-millis:30000}")
+    private long claimIntervalMillis;
+
+    /**
+     * 没有pending订单并且空闲超过这个时间的消费者会从消费者组中删除
+     */
+    @Value("${comments.seckill.order.stream.consumer-expire-millis:86400000}")
+    private long consumerExpireMillis;
+
+    /**
+     * 订单最多投递的次数,包括第一次读取,超过之后写入失败的订单不再重试
+     */
+    @Value("${comments.seckill.order.stream.max-deliveries:10}")
+    private long maxDeliveries;
+
+    /**
+     * stream的大致最大长度,pending的订单接近这个数量时会被裁剪掉
+     */
+    @Value("${comments.seckill.order.stream.max-length:1000000}")
+    private long streamMaxLength;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final Map<String, AtomicLong> pending = new ConcurrentHashMap<>();
+
+    private volatile boolean running;
+
+    private DistributionSummary batchSizeSummary;
+
+    private Timer batchTimer;
+
+    /**
+     * 处理不再重试的订单的方法
+     */
+    private java.util.function.Consumer<List<VoucherOrder>> lostHandler;
+
+    /**
+     * 创建消费者组并启动消费者线程
+     * @param handler 批量写入订单的方法,返回写入失败的订单,这些订单不会ack
+     * @param lostHandler 处理投递次数用完之后仍然写入失败的订单,例如记录下来并把票据改为failed,处理成功之后ack
+     */
+    public synchronized void start(Function<List<VoucherOrder>, List<VoucherOrder>> handler,
+                                   java.util.function.Consumer<List<VoucherOrder>> lostHandler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        this.lostHandler = lostHandler;
+        batchSizeSummary = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每一批写入数据库的订单数")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        batchTimer = Timer.builder("seckill.order.batch.write")
+                .description("每一批订单写入数据库的耗时")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        String prefix = consumerName.isEmpty() ? hostName() : consumerName;
+        Gauge.builder("seckill.order.stream.pending", pending,
+                        counts -> counts.values().stream().mapToLong(AtomicLong::get).sum())
+                .description("已经投递但是还没有写入数据库的订单数")
+                .register(meterRegistry);
+        for (int i = 0; i < consumers; i++) {
+            int index = i;
+            String name = prefix + "-" + i;
+            Thread worker = new Thread(() -> work(index, name, handler), "seckill-order-stream-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    private void createGroup(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    raw(stream), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 消费者组已经存在
+            if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void work(int index, String name, Function<List<VoucherOrder>, List<VoucherOrder>> handler) {
+        Consumer consumer = Consumer.from(SECKILL_ORDER_GROUP, name);
+        List<String> streams = Collections.emptyList();
+        // 先处理自己上次没有ack的订单,写入失败的订单留给认领处理,所以从上一批的最后一个id继续读取
+        Map<String, String> recovering = new HashMap<>();
+        long nextRefresh = 0;
+        long nextClaim = 0;
+        while (running) {
+            try {
+                if (System.currentTimeMillis() >= nextRefresh) {
+                    streams = assignedStreams(index, streams, recovering);
+                    nextRefresh = System.currentTimeMillis() + refreshMillis;
+                }
+                boolean idle = true;
+                for (String stream : streams) {
+                    if (!running) {
+                        break;
+                    }
+                    // 一个stream出错(例如已经被清理)不影响其他stream,下次发现时重新分配
+                    try {
+                        String recoverFrom = recovering.get(stream);
+                        List<MapRecord<String, Object, Object>> records = read(stream, consumer,
+                                recoverFrom == null ? ReadOffset.lastConsumed() : ReadOffset.from(recoverFrom));
+                        if (records.isEmpty()) {
+                            recovering.remove(stream);
+                            continue;
+                        }
+                        idle = false;
+                        if (recoverFrom != null) {
+                            log.info("重新写入上次没有ack的订单,stream:{},消费者:{},共{}个", stream, name, records.size());
+                            recovering.put(stream, records.get(records.size() - 1).getId().getValue());
+                        }
+                        handle(stream, records, handler, recoverFrom != null);
+                    } catch (Exception e) {
+                        if (!running) {
+                            break;
+                        }
+                        log.error("消费订单stream失败,stream:{},消费者:{}", stream, name, e);
+                        nextRefresh = 0;
+                    }
+                }
+                if (System.currentTimeMillis() >= nextClaim) {
+                    for (String stream : streams) {
+                        try {
+                            claim(stream, name, handler);
+                        } catch (Exception e) {
+                            if (!running) {
+                                break;
+                            }
+                            log.error("认领pending订单失败,stream:{},消费者:{}", stream, name, e);
+                            nextRefresh = 0;
+                        }
+                    }
+                    nextClaim = System.currentTimeMillis() + claimIntervalMillis;
+                }
+                if (idle) {
+                    TimeUnit.MILLISECONDS.sleep(pollMillis);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("发现订单stream失败,消费者:{}", name, e);
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * 发现分给这个线程的stream,新的stream创建消费者组并从头读取自己没有ack的订单,已经清理的stream不再读取
+     */
+    private List<String> assignedStreams(int index, List<String> current, Map<String, String> recovering) {
+        List<String> streams = new ArrayList<>();
+        for (String stream : seckillStockShards.streamKeys()) {
+            if (Math.floorMod(stream.hashCode(), consumers) == index) {
+                streams.add(stream);
+            }
+        }
+        for (String stream : streams) {
+            if (!current.contains(stream)) {
+                createGroup(stream);
+                pending.computeIfAbsent(stream, k -> new AtomicLong());
+                recovering.put(stream, "0");
+            }
+        }
+        for (String stream : current) {
+            if (!streams.contains(stream)) {
+                pending.remove(stream);
+                recovering.remove(stream);
+            }
+        }
+        return streams;
+    }
+
+    private List<MapRecord<String, Object, Object>> read(String stream, Consumer consumer, ReadOffset offset) {
+        StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .read(consumer, options, StreamOffset.create(stream, offset));
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    /**
+     * 使用XAUTOCLAIM认领空闲时间过长的订单,包括宕机节点的订单以及之前写入失败的订单
+     */
+    @SuppressWarnings("unchecked")
+    private void claim(String stream, String name, Function<List<VoucherOrder>, List<VoucherOrder>> handler) {
+        ackTrimmed(stream);
+        String cursor = "0-0";
+        do {
+            String startId = cursor;
+            ClaimedMessages<byte[], byte[]> claimed = stringRedisTemplate.execute((RedisCallback<ClaimedMessages<byte[], byte[]>>) connection -> {
+                RedisStreamAsyncCommands<byte[], byte[]> commands = (RedisStreamAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+                XAutoClaimArgs<byte[]> args = XAutoClaimArgs.Builder
+                        .xautoclaim(io.lettuce.core.Consumer.from(raw(SECKILL_ORDER_GROUP), raw(name)), claimIdleMillis, startId)
+                        .count(batchSize);
+                try {
+                    return commands.xautoclaim(raw(stream), args).get(blockMillis, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException("认领pending订单失败", e);
+                }
+            });
+            if (claimed == null) {
+                break;
+            }
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            for (StreamMessage<byte[], byte[]> message : claimed.getMessages()) {
+                // 已经被裁剪掉的消息没有内容,在ackTrimmed中处理
+                if (message == null || message.getBody() == null) {
+                    continue;
+                }
+                Map<Object, Object> values = new HashMap<>();
+                message.getBody().forEach((k, v) -> values.put(str(k), str(v)));
+                records.add(StreamRecords.mapBacked(values).withStreamKey(stream).withId(RecordId.of(message.getId())));
+            }
+            if (!records.isEmpty()) {
+                log.warn("认领空闲超时的订单,stream:{},消费者:{},共{}个", stream, name, records.size());
+                handle(stream, records, handler, true);
+            }
+            cursor = claimed.getId();
+        } while (running && cursor != null && !"0-0".equals(cursor));
+        refreshPending(stream);
+        removeExpiredConsumers(stream);
+    }
+
+    /**
+     * @param redelivered 这批订单是否有重新投递的,只有重新投递的订单才需要检查投递次数
+     */
+    private void handle(String stream, List<MapRecord<String, Object, Object>> records,
+                        Function<List<VoucherOrder>, List<VoucherOrder>> handler, boolean redelivered) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        Map<Long, RecordId> recordIds = new HashMap<>();
+        List<RecordId> malformed = new ArrayList<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            if (order.getId() == null || order.getUserId() == null || order.getVoucherId() == null) {
+                log.error("订单stream中的消息格式错误,直接ack:{}", record);
+                malformed.add(record.getId());
+                continue;
+            }
+            orders.add(order);
+            recordIds.put(order.getId(), record.getId());
+        }
+        List<VoucherOrder> failed = Collections.emptyList();
+        if (!orders.isEmpty()) {
+            batchSizeSummary.record(orders.size());
+            long start = System.nanoTime();
+            try {
+                failed = handler.apply(orders);
+            } catch (Exception e) {
+                log.error("订单批量写入失败,共{}个订单", orders.size(), e);
+                failed = orders;
+            } finally {
+                batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+        List<VoucherOrder> exhausted = redelivered ? exhausted(stream, failed, recordIds) : Collections.emptyList();
+        List<RecordId> exhaustedIds = new ArrayList<>(exhausted.size());
+        for (VoucherOrder order : exhausted) {
+            exhaustedIds.add(recordIds.get(order.getId()));
+        }
+        for (VoucherOrder order : failed) {
+            recordIds.remove(order.getId());
+        }
+        List<RecordId> acks = new ArrayList<>(recordIds.values());
+        acks.addAll(malformed);
+        if (!acks.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, acks.toArray(new RecordId[0]));
+        }
+        if (!exhausted.isEmpty()) {
+            log.error("订单投递{}次之后仍然写入失败,不再重试,stream:{},共{}个订单:{}", maxDeliveries, stream, exhausted.size(), exhausted);
+            meterRegistry.counter("seckill.order.lost").increment(exhausted.size());
+            // 记录失败的时候抛出异常不ack,下次认领时重新处理
+            lostHandler.accept(exhausted);
+            stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, exhaustedIds.toArray(new RecordId[0]));
+        }
+    }
+
+    /**
+     * 找出写入失败的订单中投递次数已经用完的,每个订单单独查询pending列表,只有写入失败的时候才需要
+     */
+    private List<VoucherOrder> exhausted(String stream, List<VoucherOrder> failed, Map<Long, RecordId> recordIds) {
+        List<VoucherOrder> exhausted = new ArrayList<>();
+        for (VoucherOrder order : failed) {
+            String id = recordIds.get(order.getId()).getValue();
+            PendingMessages messages = stringRedisTemplate.opsForStream()
+                    .pending(stream, SECKILL_ORDER_GROUP, Range.closed(id, id), 1L);
+            if (messages != null && !messages.isEmpty() && messages.get(0).getTotalDeliveryCount() >= maxDeliveries) {
+                exhausted.add(order);
+            }
+        }
+        return exhausted;
+    }
+
+    /**
+     * 找出没有写入数据库就被裁剪掉的订单,裁剪只删除stream头部的消息,所以id小于stream中第一条消息的pending订单都已经被裁剪了;
+     * 这些订单的内容已经没有了,XAUTOCLAIM不会返回它们(redis7会直接从pending列表中删除),需要在认领之前处理
+     */
+    private void ackTrimmed(String stream) {
+        while (running) {
+            PendingMessages messages = stringRedisTemplate.opsForStream()
+                    .pending(stream, SECKILL_ORDER_GROUP, Range.unbounded(), (long) batchSize);
+            if (messages == null || messages.isEmpty()) {
+                return;
+            }
+            List<MapRecord<String, Object, Object>> first = stringRedisTemplate.opsForStream()
+                    .range(stream, Range.unbounded(), RedisZSetCommands.Limit.limit().count(1));
+            RecordId firstId = first == null || first.isEmpty() ? null : first.get(0).getId();
+            List<String> trimmed = new ArrayList<>();
+            for (PendingMessage message : messages) {
+                RecordId id = message.getId();
+                if (firstId == null || id.getTimestamp() < firstId.getTimestamp()
+                        || (id.getTimestamp().equals(firstId.getTimestamp()) && id.getSequence() < firstId.getSequence())) {
+                    trimmed.add(id.getValue());
+                }
+            }
+            if (trimmed.isEmpty()) {
+                return;
+            }
+            lost(stream, trimmed);
+            if (trimmed.size() < messages.size()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 没有写入数据库就被裁剪掉的订单,留在pending列表中也无法重试,所以直接ack;
+     * 记录到丢失列表中交给对账,这些用户在redis中有购买记录但是没有订单,对账修复时会移除用户并归还库存
+     */
+    private void lost(String stream, List<String> ids) {
+        log.error("没有写入数据库的订单已经被stream裁剪,订单丢失,stream:{},消息:{}", stream, ids);
+        meterRegistry.counter("seckill.order.stream.lost", "stream", stream).increment(ids.size());
+        stringRedisTemplate.opsForList().rightPushAll(SECKILL_ORDER_LOST_KEY,
+                ids.stream().map(id -> stream + "|" + id).toArray(String[]::new));
+        stringRedisTemplate.opsForList().trim(SECKILL_ORDER_LOST_KEY, -SECKILL_ORDER_LOST_MAX, -1);
+        stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new String[0]));
+    }
+
+    /**
+     * 查询一张优惠券还没有写入数据库的订单的用户,包括所有stream中已经投递没有ack的订单和还没有投递给消费者组的订单
+     * pending列表中只有消息id,需要逐个读取消息的内容,只在对账需要确认丢失的订单时调用
+     */
+    public Set<Long> inFlightUsers(Long voucherId) {
+        String voucher = voucherId.toString();
+        Set<Long> users = new HashSet<>();
+        if (!running) {
+            return users;
+        }
+        for (String stream : seckillStockShards.streamKeys(voucherId)) {
+            // 消费者线程可能还没有发现刚预热的秒杀券
+            createGroup(stream);
+            // 没有投递的订单,从消费者组最后投递的id之后开始读取
+            String from = lastDeliveredId(stream);
+            while (true) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .range(stream, Range.rightUnbounded(Range.Bound.inclusive(from)),
+                                RedisZSetCommands.Limit.limit().count(batchSize + 1));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    if (!record.getId().getValue().equals(from)) {
+                        collectUser(record, voucher, users);
+                    }
+                }
+                String last = records.get(records.size() - 1).getId().getValue();
+                if (last.equals(from) || records.size() <= batchSize) {
+                    break;
+                }
+                from = last;
+            }
+            // 已经投递没有ack的订单
+            Range<String> range = Range.unbounded();
+            while (true) {
+                PendingMessages messages = stringRedisTemplate.opsForStream()
+                        .pending(stream, SECKILL_ORDER_GROUP, range, (long) batchSize);
+                if (messages == null || messages.isEmpty()) {
+                    break;
+                }
+                for (PendingMessage message : messages) {
+                    String id = message.getId().getValue();
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                            .range(stream, Range.closed(id, id));
+                    if (records != null) {
+                        records.forEach(record -> collectUser(record, voucher, users));
+                    }
+                }
+                if (messages.size() < batchSize) {
+                    break;
+                }
+                RecordId last = messages.get(messages.size() - 1).getId();
+                range = Range.rightUnbounded(Range.Bound.inclusive(
+                        RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue()));
+            }
+        }
+        return users;
+    }
+
+    private String lastDeliveredId(String stream) {
+        return stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse("0-0");
+    }
+
+    private static void collectUser(MapRecord<String, Object, Object> record, String voucherId, Set<Long> users) {
+        Object userId = record.getValue().get("userId");
+        if (userId != null && voucherId.equals(String.valueOf(record.getValue().get("voucherId")))) {
+            users.add(Long.valueOf(userId.toString()));
+        }
+    }
+
+    private void refreshPending(String stream) {
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP);
+        if (summary != null) {
+            pending.computeIfAbsent(stream, k -> new AtomicLong()).set(summary.getTotalPendingMessages());
+            if (summary.getTotalPendingMessages() > streamMaxLength / 2) {
+                log.warn("stream中没有ack的订单过多,接近max-length之后会被裁剪,stream:{},pending:{},max-length:{}",
+                        stream, summary.getTotalPendingMessages(), streamMaxLength);
+            }
+        }
+    }
+
+    /**
+     * 删除已经下线的消费者,只删除没有pending订单的,避免消费者组中的消费者越来越多
+     */
+    private void removeExpiredConsumers(String stream) {
+        StreamInfo.XInfoConsumers infos = stringRedisTemplate.opsForStream().consumers(stream, SECKILL_ORDER_GROUP);
+        if (infos == null) {
+            return;
+        }
+        infos.forEach(info -> {
+            if (info.pendingCount() == 0 && info.idleTimeMs() > consumerExpireMillis) {
+                log.info("删除下线的订单消费者:{}", info.consumerName());
+                stringRedisTemplate.opsForStream().deleteConsumer(stream, Consumer.from(SECKILL_ORDER_GROUP, info.consumerName()));
+            }
+        });
+    }
+
+    private void sleep() {
+        try {
+            TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("获取主机名失败,请配置comments.seckill.order.stream.consumer-name", e);
+        }
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String str(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        // 正在写入的一批写完之后再退出,没有写完的订单会在重启之后或者被其他节点认领重新写入
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.xavier.utils;
+
+import com.xavier.entity.SeckillVoucher;
+import com.xavier.mapper.SeckillVoucherMapper;
+import com.xavier.mapper.VoucherOrderMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.xavier.utils.RedisConstants.SECKILL_ORDER_LOST_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_RECONCILE_LOCK_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_RECONCILE_LOCK_TTL;
+
+/**
+ * 秒杀库存和订单在redis和数据库之间的对账
+ * 按照优惠券id分批,每次只对账一张秒杀券,数据库只做普通的查询和单行更新,秒杀进行中也不会长时间锁表;
+ * 每张秒杀券比较两类差异:
+ * 1. redis中记录了购买但是数据库中没有订单的用户(订单丢失或者还在写入中),以及数据库中有订单但是redis中没有记录的用户
+ * 2. 两边推算出的总库存不一致,redis的总库存 = 剩余库存 + 已购买用户数,数据库的总库存 = 剩余库存 + 订单数,
+ *    正在写入的订单在redis中已经算作用户,在数据库中还算在剩余库存里,不影响总库存;
+ *    数据库降级的订单扣减的是预留库存fallback_stock,不在任何一边的剩余库存中,用户补写到redis之后两边的总库存同样多出这些订单
+ * 开启repair之后,连续两次对账都存在的差异才会修复,避免把正在写入的订单当成丢失:丢失订单的用户从redis中移除并归还库存,
+ * 票据还是pending或者订单还在stream、日志中的用户仍然认为是在写入中,不会移除,
+ * 缺少的用户补写到redis中防止重复下单,总库存以redis为准修正数据库的剩余库存
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    @Resource
+    private SeckillTickets seckillTickets;
+
+    @Resource
+    private SeckillOrderStreamConsumer seckillOrderStreamConsumer;
+
+    @Resource
+    private SeckillOrderPipeline seckillOrderPipeline;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${comments.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 是否修复差异,为false时只报告
+     */
+    @Value("${comments.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    @Value("${comments.seckill.reconcile.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 只对账结束时间在最近多少天之内的秒杀券
+     */
+    @Value("${comments.seckill.reconcile.days:7}")
+    private int days;
+
+    /**
+     * 上一次对账发现的差异,连续两次都存在的差异才修复
+     */
+    private final Map<Long, Diff> lastDiffs = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedDelayString = "${comments.seckill.reconcile.interval-millis:300000}",
+            initialDelayString = "${comments.seckill.reconcile.interval-millis:300000}")
+    public void scheduledReconcile() {
+        if (enabled) {
+            reconcileAll();
+        }
+    }
+
+    /**
+     * 对账所有需要检查的秒杀券
+     * @return 存在差异的秒杀券数量,没有拿到锁时返回-1
+     */
+    public int reconcileAll() {
+        // 多个节点同时对账没有意义,只让拿到锁的节点去做
+        ILock lock = new SimpleRedisLock(SECKILL_RECONCILE_LOCK_KEY, stringRedisTemplate);
+        if (!lock.tryLock(SECKILL_RECONCILE_LOCK_TTL)) {
+            return -1;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            LocalDateTime since = LocalDateTime.now().minusDays(days);
+            Set<Long> checked = new HashSet<>();
+            int vouchers = 0;
+            int mismatched = 0;
+            long afterId = 0;
+            while (true) {
+                List<SeckillVoucher> batch = seckillVoucherMapper.getSeckillVouchersEndedAfter(afterId, since, batchSize);
+                for (SeckillVoucher voucher : batch) {
+                    Long voucherId = voucher.getVoucherId();
+                    checked.add(voucherId);
+                    vouchers++;
+                    try {
+                        if (reconcile(voucherId)) {
+                            mismatched++;
+                        }
+                    } catch (Exception e) {
+                        log.error("秒杀券对账失败:{}", voucherId, e);
+                    }
+                }
+                if (batch.size() < batchSize) {
+                    break;
+                }
+                afterId = batch.get(batch.size() - 1).getVoucherId();
+            }
+            lastDiffs.keySet().retainAll(checked);
+            reportLostOrders();
+            log.info("秒杀券对账完成,共{}张,存在差异{}张,耗时:{}ms", vouchers, mismatched, System.currentTimeMillis() - start);
+            return mismatched;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 报告丢失的订单,包括被stream裁剪掉的订单(消息的内容已经没有了,不知道是哪张券哪个用户的)
+     * 和重试用完之后仍然没有写入数据库的订单(记录的是订单的json,票据改为failed),
+     * 这些用户会作为没有订单的用户出现在对应秒杀券的差异中,开启repair之后移除用户并归还库存
+     */
+    private void reportLostOrders() {
+        Long lost = stringRedisTemplate.opsForList().size(SECKILL_ORDER_LOST_KEY);
+        if (lost != null && lost > 0) {
+            log.error("有{}个订单没有写入数据库,记录在{}中,{}", lost, SECKILL_ORDER_LOST_KEY,
+                    repair ? "对账会归还它们的库存" : "需要开启repair或者人工归还库存");
+        }
+    }
+
+    /**
+     * 对账一张秒杀券
+     * 先读redis再读数据库,这之间写入的订单只会表现为redis中多出来的用户,由连续两次的检查过滤掉
+     * @return 是否存在差异
+     */
+    public boolean reconcile(Long voucherId) {
+        int shards = seckillStockShards.getShards();
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                conn.get(seckillStockShards.stockKey(voucherId, i));
+                conn.sMembers(seckillStockShards.orderKey(voucherId, i));
+            }
+            return null;
+        });
+        long redisStock = 0;
+        boolean stockMissing = true;
+        Set<Long> redisUsers = new HashSet<>();
+        for (int i = 0; i < shards; i++) {
+            Object stock = results.get(2 * i);
+            if (stock != null) {
+                stockMissing = false;
+                redisStock += Long.parseLong(stock.toString());
+            }
+            for (Object userId : (Set<?>) results.get(2 * i + 1)) {
+                redisUsers.add(Long.valueOf(userId.toString()));
+            }
+        }
+        if (stockMissing) {
+            // 库存还没有加载到redis中,由缓存预热负责
+            log.warn("秒杀券对账跳过,redis中没有库存:{}", voucherId);
+            return false;
+        }
+        SeckillVoucher voucher = seckillVoucherMapper.getSeckillVoucherById(voucherId);
+        if (voucher == null) {
+            return false;
+        }
+        Set<Long> dbUsers = new HashSet<>(voucherOrderMapper.getUserIdsByVoucherId(voucherId));
+
+        Diff diff = new Diff();
+        for (Long userId : redisUsers) {
+            if (!dbUsers.contains(userId)) {
+                diff.lost.add(userId);
+            }
+        }
+        for (Long userId : dbUsers) {
+            if (!redisUsers.contains(userId)) {
+                diff.missing.add(userId);
+            }
+        }
+        // redis中缺少的用户在补写之后才会计入redis的总库存,例如redis丢失数据之后从数据库恢复的库存
+        diff.stock = voucher.getStock() + dbUsers.size() - (redisStock + redisUsers.size() + diff.missing.size());
+        Diff last = lastDiffs.put(voucherId, diff);
+        if (diff.isEmpty()) {
+            lastDiffs.remove(voucherId);
+            return false;
+        }
+        log.warn("秒杀券{}对账存在差异,redis库存:{},redis用户:{},数据库库存:{},订单数:{},没有订单的用户:{},redis缺少的用户:{},总库存差:{}",
+                voucherId, redisStock, redisUsers.size(), voucher.getStock(), dbUsers.size(),
+                diff.lost.size(), diff.missing.size(), diff.stock);
+        meterRegistry.counter("seckill.reconcile.diff", "type", "lost").increment(diff.lost.size());
+        meterRegistry.counter("seckill.reconcile.diff", "type", "missing").increment(diff.missing.size());
+        if (diff.stock != 0) {
+            meterRegistry.counter("seckill.reconcile.diff", "type", "stock").increment(Math.abs(diff.stock));
+        }
+        if (repair && last != null) {
+            repair(voucherId, voucher.getStock(), diff, last);
+        }
+        return true;
+    }
+
+    /**
+     * 把数据库中有订单但是redis中没有记录的用户补写到redis,用于redis故障期间在数据库中降级下单的订单
+     * 这些订单扣减的是预留的fallback_stock,不在redis的库存中,只补写用户,不扣减redis的库存;
+     * 补写之后两边的总库存都多了这些订单,仍然一致
+     * @return 补写的用户数
+     */
+    public int restoreOrders(Long voucherId) {
+        int shards = seckillStockShards.getShards();
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                conn.sMembers(seckillStockShards.orderKey(voucherId, i));
+            }
+            return null;
+        });
+        Set<String> redisUsers = new HashSet<>();
+        for (Object shardMembers : members) {
+            for (Object userId : (Set<?>) shardMembers) {
+                redisUsers.add(userId.toString());
+            }
+        }
+        List<Long> missing = new ArrayList<>();
+        for (Long userId : voucherOrderMapper.getUserIdsByVoucherId(voucherId)) {
+            if (!redisUsers.contains(userId.toString())) {
+                missing.add(userId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long userId : missing) {
+                conn.sAdd(seckillStockShards.orderKey(voucherId, seckillStockShards.homeShard(userId)), userId.toString());
+            }
+            return null;
+        });
+        meterRegistry.counter("seckill.reconcile.repaired", "type", "restored").increment(missing.size());
+        log.info("秒杀券{}补写降级期间的订单{}个", voucherId, missing.size());
+        return missing.size();
+    }
+
+    /**
+     * 只修复和上一次对账相同的差异
+     */
+    private void repair(Long voucherId, int dbStock, Diff diff, Diff last) {
+        // redis中缺少的用户补写到所在的分片,防止重复下单,这些用户的库存已经在数据库中扣过了
+        List<Long> missing = new ArrayList<>();
+        for (Long userId : diff.missing) {
+            if (last.missing.contains(userId)) {
+                missing.add(userId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long userId : missing) {
+                    conn.sAdd(seckillStockShards.orderKey(voucherId, seckillStockShards.homeShard(userId)), userId.toString());
+                }
+                return null;
+            });
+            meterRegistry.counter("seckill.reconcile.repaired", "type", "missing").increment(missing.size());
+            log.info("秒杀券{}补写redis中缺少的用户{}个", voucherId, missing.size());
+        }
+        // 连续两次都没有订单的用户认为订单已经丢失,移除用户并归还库存,用户确实被移除了才归还,防止和秒杀的回滚重复
+        List<Long> lost = new ArrayList<>();
+        for (Long userId : diff.lost) {
+            if (last.lost.contains(userId)) {
+                lost.add(userId);
+            }
+        }
+        // 积压的订单可能在两次对账之后还没有写入,票据还是pending或者还在stream、日志中的订单不算丢失
+        if (!lost.isEmpty()) {
+            Set<Long> inFlight = inFlightUsers(voucherId);
+            int before = lost.size();
+            lost.removeIf(inFlight::contains);
+            if (lost.size() < before) {
+                log.info("秒杀券{}有{}个没有订单的用户还在写入中,不归还库存", voucherId, before - lost.size());
+            }
+        }
+        int returned = 0;
+        for (Long userId : lost) {
+            int shard = seckillStockShards.homeShard(userId);
+            Long removed = stringRedisTemplate.opsForSet().remove(seckillStockShards.orderKey(voucherId, shard), userId.toString());
+            if (removed != null && removed > 0) {
+                stringRedisTemplate.opsForValue().increment(seckillStockShards.stockKey(voucherId, shard));
+                returned++;
+            }
+        }
+        if (returned > 0) {
+            seckillSoldOut.reset(voucherId);
+            meterRegistry.counter("seckill.reconcile.repaired", "type", "lost").increment(returned);
+            log.info("秒杀券{}移除没有订单的用户并归还库存{}个", voucherId, returned);
+        }
+        // 总库存以redis为准修正数据库的剩余库存
+        if (diff.stock != 0 && diff.stock == last.stock) {
+            if (dbStock - diff.stock < 0) {
+                log.error("秒杀券{}的订单数超过了redis中的总库存,需要人工处理,总库存差:{}", voucherId, diff.stock);
+                return;
+            }
+            seckillVoucherMapper.addStock(voucherId, (int) -diff.stock);
+            meterRegistry.counter("seckill.reconcile.repaired", "type", "stock").increment(Math.abs(diff.stock));
+            log.info("秒杀券{}修正数据库库存:{}", voucherId, -diff.stock);
+            // 已经修正过了,下一次重新确认
+            lastDiffs.remove(voucherId);
+        }
+    }
+
+    /**
+     * 还没有写入数据库的订单的用户: 票据还是pending的,stream中没有ack或者还没有投递的,这个节点的内存队列或者日志中的
+     */
+    private Set<Long> inFlightUsers(Long voucherId) {
+        Set<Long> users = seckillTickets.pendingUsers(voucherId);
+        users.addAll(seckillOrderStreamConsumer.inFlightUsers(voucherId));
+        users.addAll(seckillOrderPipeline.inFlightUsers(voucherId));
+        return users;
+    }
+
+    private static class Diff {
+        private final Set<Long> lost = new HashSet<>();
+        private final Set<Long> missing = new HashSet<>();
+        private long stock;
+
+        private boolean isEmpty() {
+            return lost.isEmpty() && missing.isEmpty() && stock == 0;
+        }
+    }
+}
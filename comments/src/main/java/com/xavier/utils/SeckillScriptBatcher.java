@@ -0,0 +1,246 @@
+package com.xavier.utils;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.xavier.utils.RedisConstants.SECKILL_IDEMPOTENCY_TTL;
+
+/**
+ * 秒杀脚本的微批执行
+ * 同一张优惠券同一个分片上并发的购买请求在很短的时间窗口内合并成一批,用seckill_batch.lua一次执行,
+ * 每个请求拿到自己的结果,和单独执行seckill.lua的结果相同;
+ * 没有单独的线程,每一批第一个到达的请求线程负责等待窗口结束、执行脚本并唤醒其他请求,
+ * 一批的请求数达到上限时立即执行
+ */
+@Slf4j
+@Component
+public class SeckillScriptBatcher {
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> BATCH_SCRIPT;
+
+    /**
+     * 等待其他线程执行脚本的最长时间
+     */
+    private static final long AWAIT_SECONDS = 10;
+
+    static {
+        BATCH_SCRIPT = new DefaultRedisScript<>();
+        BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        BATCH_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${comments.seckill.script-batch.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 一批请求的等待窗口,为0时不等待,只合并已经同时到达的请求
+     */
+    @Value("${comments.seckill.script-batch.window-micros:200}")
+    private long windowMicros;
+
+    @Value("${comments.seckill.script-batch.max-size:64}")
+    private int maxSize;
+
+    @Value("${comments.seckill.order.queue:stream}")
+    private String orderQueue;
+
+    @Value("${comments.seckill.order.stream.max-length:1000000}")
+    private long streamMaxLength;
+
+    /**
+     * 每张优惠券每个分片正在收集请求的一批
+     */
+    private final ConcurrentHashMap<String, Batch> open = new ConcurrentHashMap<>();
+
+    private DistributionSummary batchSize;
+
+    @PostConstruct
+    private void init() {
+        batchSize = DistributionSummary.builder("seckill.script.batch.size")
+                .description("每次秒杀脚本调用处理的请求数").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 在用户所在的分片上秒杀
+     * @param idempotencyKey 请求的幂等key,没有时为null
+     * @return 和seckill.lua的返回值相同,0: 成功, 2: 重复下单, 3: 这个分片没有库存, 4: 还没有开始, 5: 已经结束, 6: 没有预热,
+     * 7: 相同幂等key的请求已经下过单了
+     */
+    public long seckill(int shard, Long voucherId, Long userId, long orderId, String idempotencyKey) {
+        Attempt attempt = new Attempt(userId, orderId, idempotencyKey);
+        String key = voucherId + ":" + shard;
+        while (true) {
+            Batch batch = open.get(key);
+            if (batch == null) {
+                Batch created = new Batch(shard, voucherId);
+                created.add(attempt);
+                if (open.putIfAbsent(key, created) == null) {
+                    lead(key, created);
+                    break;
+                }
+                continue;
+            }
+            int added = batch.add(attempt);
+            if (added < 0) {
+                // 这一批已经开始执行了,换一批
+                open.remove(key, batch);
+                continue;
+            }
+            if (added > 0) {
+                // 这一批满了,唤醒负责的线程立即执行
+                open.remove(key, batch);
+                LockSupport.unpark(batch.leader);
+            }
+            break;
+        }
+        return await(attempt.result);
+    }
+
+    /**
+     * 等待窗口结束或者这一批满了之后执行脚本
+     */
+    private void lead(String key, Batch batch) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        long remaining;
+        while (!batch.isFull() && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        open.remove(key, batch);
+        execute(batch, batch.close());
+    }
+
+    private void execute(Batch batch, List<Attempt> attempts) {
+        batchSize.record(attempts.size());
+        try {
+            List<String> keys = new ArrayList<>(Arrays.asList(seckillStockShards.stockKey(batch.voucherId, batch.shard),
+                    seckillStockShards.orderKey(batch.voucherId, batch.shard),
+                    seckillStockShards.streamKey(batch.voucherId, batch.shard),
+                    seckillStockShards.windowKey(batch.voucherId, batch.shard)));
+            List<String> args = new ArrayList<>(4 + attempts.size() * 3);
+            args.add(batch.voucherId.toString());
+            args.add("stream".equals(orderQueue) ? "1" : "0");
+            args.add(String.valueOf(streamMaxLength));
+            args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(SECKILL_IDEMPOTENCY_TTL)));
+            for (Attempt attempt : attempts) {
+                args.add(attempt.userId.toString());
+                args.add(String.valueOf(attempt.orderId));
+                // 幂等key作为脚本的key传入,参数中是它在KEYS中的下标,lua的下标从1开始
+                if (attempt.idempotencyKey == null) {
+                    args.add("0");
+                } else {
+                    keys.add(attempt.idempotencyKey);
+                    args.add(String.valueOf(keys.size()));
+                }
+            }
+            List<?> results = stringRedisTemplate.execute(BATCH_SCRIPT, keys, args.toArray());
+            if (results == null || results.size() != attempts.size()) {
+                throw new IllegalStateException("秒杀脚本返回的结果数量不正确:" + results);
+            }
+            for (int i = 0; i < attempts.size(); i++) {
+                attempts.get(i).result.complete(((Number) results.get(i)).longValue());
+            }
+        } catch (Exception e) {
+            log.error("批量秒杀失败,优惠券:{},分片:{},共{}个请求", batch.voucherId, batch.shard, attempts.size(), e);
+            for (Attempt attempt : attempts) {
+                attempt.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private long await(CompletableFuture<Long> result) {
+        try {
+            return result.get(AWAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待批量秒杀超时", e);
+        }
+    }
+
+    /**
+     * 一个购买请求
+     */
+    private static class Attempt {
+        private final Long userId;
+        private final long orderId;
+        private final String idempotencyKey;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        private Attempt(Long userId, long orderId, String idempotencyKey) {
+            this.userId = userId;
+            this.orderId = orderId;
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+
+    /**
+     * 一批请求,由创建它的线程执行
+     */
+    private class Batch {
+        private final int shard;
+        private final Long voucherId;
+        private final Thread leader = Thread.currentThread();
+        private final List<Attempt> attempts = new ArrayList<>();
+        private boolean closed;
+
+        private Batch(int shard, Long voucherId) {
+            this.shard = shard;
+            this.voucherId = voucherId;
+        }
+
+        /**
+         * @return -1: 已经开始执行,没有加入; 0: 加入了; 1: 加入之后这一批满了
+         */
+        private synchronized int add(Attempt attempt) {
+            if (closed) {
+                return -1;
+            }
+            attempts.add(attempt);
+            if (attempts.size() >= maxSize) {
+                closed = true;
+                return 1;
+            }
+            return 0;
+        }
+
+        private synchronized boolean isFull() {
+            return attempts.size() >= maxSize;
+        }
+
+        private synchronized List<Attempt> close() {
+            closed = true;
+            return attempts;
+        }
+    }
+}
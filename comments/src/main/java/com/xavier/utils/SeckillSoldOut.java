@@ -0,0 +1,155 @@
+package com.xavier.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.xavier.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券的本地售罄标记
+ * 秒杀脚本返回库存不足之后在本地标记售罄并通过发布订阅通知所有节点,之后的请求直接在本地拒绝,不再访问redis;
+ * 补充库存之后调用reset清除所有节点的标记;为了防止错过通知,标记超过recheck-millis之后放行一个请求重新检查库存,
+ * 重新检查下单成功时只清除本地的标记;秒杀券清理之后调用purge删除所有节点上这张券的记录
+ */
+@Slf4j
+@Component
+public class SeckillSoldOut implements MessageListener {
+    private static final String SOLD_OUT = "soldout";
+    private static final String RESET = "reset";
+    private static final String PURGE = "purge";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 售罄标记每隔多久放行一个请求去redis重新检查
+     */
+    @Value("${comments.seckill.sold-out.recheck-millis:5000}")
+    private long recheckMillis;
+
+    /**
+     * 售罄的秒杀券,值为上次检查的时间
+     */
+    private final ConcurrentHashMap<Long, AtomicLong> soldOut = new ConcurrentHashMap<>();
+
+    /**
+     * 每张秒杀券最后一次补充库存的时间,早于这个时间开始的请求得到的售罄结果已经过时了
+     */
+    private final ConcurrentHashMap<Long, Long> resetAt = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已经售罄,标记超过recheck-millis的时候只放行一个请求重新检查
+     */
+    public boolean isSoldOut(Long voucherId) {
+        AtomicLong checkedAt = soldOut.get(voucherId);
+        if (checkedAt == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long last = checkedAt.get();
+        return now - last < recheckMillis || !checkedAt.compareAndSet(last, now);
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     * @param startMillis 得到库存不足结果的请求开始的时间
+     */
+    public void markSoldOut(Long voucherId, long startMillis) {
+        if (markLocal(voucherId, startMillis)) {
+            log.info("秒杀券已经售罄:{}", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + "|" + voucherId + "|" + startMillis);
+        }
+    }
+
+    /**
+     * 补充库存之后清除所有节点的售罄标记
+     */
+    public void reset(Long voucherId) {
+        long now = System.currentTimeMillis();
+        resetLocal(voucherId, now);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET + "|" + voucherId + "|" + now);
+    }
+
+    /**
+     * 放行的请求下单成功了,说明还有库存,清除本地的售罄标记,不通知其他节点,其他节点由各自的重新检查清除
+     */
+    public void clearLocal(Long voucherId) {
+        if (soldOut.remove(voucherId) != null) {
+            log.info("秒杀券重新检查之后仍然有库存:{}", voucherId);
+        }
+    }
+
+    /**
+     * 秒杀券从redis中清理之后,删除所有节点上这张券的售罄标记和补充库存的时间
+     */
+    public void purge(Long voucherId) {
+        purgeLocal(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, PURGE + "|" + voucherId + "|" + System.currentTimeMillis());
+    }
+
+    private void purgeLocal(Long voucherId) {
+        soldOut.remove(voucherId);
+        resetAt.remove(voucherId);
+    }
+
+    /**
+     * @return 是否是新的标记
+     */
+    private boolean markLocal(Long voucherId, long startMillis) {
+        Long reset = resetAt.get(voucherId);
+        if (reset != null && startMillis < reset) {
+            return false;
+        }
+        AtomicLong checkedAt = soldOut.putIfAbsent(voucherId, new AtomicLong(System.currentTimeMillis()));
+        if (checkedAt != null) {
+            checkedAt.set(System.currentTimeMillis());
+            return false;
+        }
+        return true;
+    }
+
+    private void resetLocal(Long voucherId, long millis) {
+        resetAt.merge(voucherId, millis, Math::max);
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 接收其他节点的售罄、补充库存和清理的通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|");
+        if (parts.length != 3) {
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[1]);
+        long millis = Long.parseLong(parts[2]);
+        if (SOLD_OUT.equals(parts[0])) {
+            markLocal(voucherId, millis);
+        } else if (RESET.equals(parts[0])) {
+            resetLocal(voucherId, millis);
+        } else if (PURGE.equals(parts[0])) {
+            purgeLocal(voucherId);
+        }
+    }
+}
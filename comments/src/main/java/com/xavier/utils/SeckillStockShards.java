@@ -0,0 +1,165 @@
+package com.xavier.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.xavier.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存的分片
+ * 每张秒杀券的库存平均拆分到多个分片key中,同一个分片的库存、已购买用户、秒杀时间窗口以及订单stream使用相同的hash tag,
+ * hash tag中包含秒杀券的id,例如秒杀券10的分片1: seckill:stock:{seckill-10-1}、seckill:order:{seckill-10-1}、
+ * seckill:window:{seckill-10-1}、stream.orders:{seckill-10-1},
+ * 在redis集群中同一个分片的key位于同一个slot,lua脚本只操作一个分片,不同秒杀券、不同分片分布在不同的slot上;
+ * 每张秒杀券的每个分片有自己的订单stream,预热过的秒杀券记录在seckill:order-streams中,由stream的消费者发现;
+ * 用户按照id的hash固定在一个分片上记录是否购买过,这个分片没有库存的时候再去其他分片扣减
+ * 分片数量在有秒杀券进行中的时候不能修改
+ */
+@Component
+public class SeckillStockShards {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${comments.seckill.stock.shards:4}")
+    private int shards;
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * 用户记录购买状态的分片
+     */
+    public int homeShard(Long userId) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + tag(voucherId, shard);
+    }
+
+    public String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + tag(voucherId, shard);
+    }
+
+    /**
+     * 秒杀时间窗口的hash,每个分片一份,秒杀脚本不查询数据库就可以判断是否在秒杀时间内
+     */
+    public String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + tag(voucherId, shard);
+    }
+
+    /**
+     * 秒杀请求的幂等key,值为第一次请求的订单id,放在用户所在的分片上,和秒杀脚本操作的key位于同一个slot
+     */
+    public String idempotencyKey(Long voucherId, Long userId, String key) {
+        return SECKILL_IDEMPOTENCY_KEY + tag(voucherId, homeShard(userId)) + ":" + userId + ":" + key;
+    }
+
+    public String streamKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_STREAM_KEY + ":" + tag(voucherId, shard);
+    }
+
+    /**
+     * 秒杀券所有分片的订单stream,按照分片的顺序
+     */
+    public List<String> streamKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(streamKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 所有预热过还没有清理的秒杀券的订单stream
+     */
+    public List<String> streamKeys() {
+        Set<String> vouchers = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAMS_KEY);
+        List<String> keys = new ArrayList<>();
+        if (vouchers != null) {
+            for (String voucherId : vouchers) {
+                keys.addAll(streamKeys(Long.valueOf(voucherId)));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 所有分片的库存key,按照分片的顺序
+     */
+    public List<String> stockKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 把库存平均拆分到每个分片,除不尽的部分分给前面的分片
+     */
+    public long[] split(long stock) {
+        long[] result = new long[shards];
+        for (int i = 0; i < shards; i++) {
+            result[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return result;
+    }
+
+    /**
+     * 写入秒杀券所有分片的库存,并登记秒杀券的订单stream
+     * @param onlyIfAbsent 为true时只写入不存在的分片,已经被扣减过的库存不能覆盖
+     */
+    public void initStock(Long voucherId, long stock, boolean onlyIfAbsent) {
+        initStock(Collections.singletonMap(voucherId, stock), onlyIfAbsent);
+    }
+
+    public void initStock(Map<Long, Long> stocks, boolean onlyIfAbsent) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            stocks.forEach((voucherId, stock) -> {
+                long[] parts = split(stock);
+                for (int i = 0; i < shards; i++) {
+                    if (onlyIfAbsent) {
+                        conn.setNX(stockKey(voucherId, i), String.valueOf(parts[i]));
+                    } else {
+                        conn.set(stockKey(voucherId, i), String.valueOf(parts[i]));
+                    }
+                }
+                conn.sAdd(SECKILL_ORDER_STREAMS_KEY, voucherId.toString());
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 把补充的库存拆分到各个分片上增加
+     */
+    public void addStock(Long voucherId, long count) {
+        long[] parts = split(count);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                if (parts[i] > 0) {
+                    conn.incrBy(stockKey(voucherId, i), parts[i]);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static String tag(Long voucherId, int shard) {
+        return "{seckill-" + voucherId + "-" + shard + "}";
+    }
+}
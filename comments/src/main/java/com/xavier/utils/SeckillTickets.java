@@ -0,0 +1,163 @@
+package com.xavier.utils;
+
+import com.xavier.dto.SeckillTicket;
+import com.xavier.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.xavier.utils.RedisConstants.SECKILL_PENDING_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_PENDING_VOUCHERS_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_TICKET_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_TICKET_TTL;
+
+/**
+ * 秒杀订单的异步写入状态,每个订单一个hash: seckill:ticket:{orderId}
+ * 秒杀成功之后写入pending,订单写入数据库之后改为persisted,stream和内存队列中写入失败的订单都会被重试,保持pending,
+ * 重试用完之后仍然没有写入的订单改为failed;
+ * 客户端拿着订单id轮询状态,不需要重复提交
+ * 状态只是给客户端查询用的,写入失败不影响下单和订单的写入;
+ * 每张优惠券还有一个pending用户的索引zset: seckill:pending:{voucherId},分数是创建时间,
+ * 对账用它判断redis中有购买记录但是数据库中没有订单的用户是不是还在写入中,数据库降级用它判断优惠券是否有没有写入的订单,
+ * 有pending用户的优惠券记录在seckill:pending-vouchers中
+ */
+@Slf4j
+@Component
+public class SeckillTickets {
+    public static final String PENDING = "pending";
+    public static final String PERSISTED = "persisted";
+    public static final String FAILED = "failed";
+
+    private static final String STATUS = "status";
+    private static final String USER_ID = "userId";
+    private static final String VOUCHER_ID = "voucherId";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 秒杀成功之后创建pending状态的票据
+     * 订单可能在这之前就已经写入数据库了,所以用hsetnx写入状态,不覆盖persisted
+     */
+    public void create(Long orderId, Long userId, Long voucherId) {
+        String key = SECKILL_TICKET_KEY + orderId;
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.hSetNX(key, STATUS, PENDING);
+                conn.hSet(key, USER_ID, userId.toString());
+                conn.hSet(key, VOUCHER_ID, voucherId.toString());
+                conn.expire(key, TimeUnit.MINUTES.toSeconds(SECKILL_TICKET_TTL));
+                conn.zAdd(SECKILL_PENDING_KEY + voucherId, System.currentTimeMillis(), userId.toString());
+                conn.expire(SECKILL_PENDING_KEY + voucherId, TimeUnit.MINUTES.toSeconds(SECKILL_TICKET_TTL));
+                conn.sAdd(SECKILL_PENDING_VOUCHERS_KEY, voucherId.toString());
+                conn.expire(SECKILL_PENDING_VOUCHERS_KEY, TimeUnit.MINUTES.toSeconds(SECKILL_TICKET_TTL));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("创建秒杀票据失败:{}", orderId, e);
+        }
+    }
+
+    /**
+     * 批量更新一批订单的状态,不再是pending的订单从优惠券的pending索引中移除
+     */
+    public void update(Collection<VoucherOrder> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = SECKILL_TICKET_KEY + order.getId();
+                    conn.hSet(key, STATUS, status);
+                    conn.expire(key, TimeUnit.MINUTES.toSeconds(SECKILL_TICKET_TTL));
+                    if (!PENDING.equals(status)) {
+                        conn.zRem(SECKILL_PENDING_KEY + order.getVoucherId(), order.getUserId().toString());
+                    }
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("更新秒杀票据失败,共{}个订单,状态:{}", orders.size(), status, e);
+        }
+    }
+
+    /**
+     * 查询用户自己的票据
+     * @return 票据不存在、已经过期或者不属于这个用户时返回null
+     */
+    public SeckillTicket get(Long orderId, Long userId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(SECKILL_TICKET_KEY + orderId);
+        if (entries.isEmpty() || !userId.toString().equals(entries.get(USER_ID))) {
+            return null;
+        }
+        SeckillTicket ticket = new SeckillTicket();
+        ticket.setOrderId(orderId);
+        Object voucherId = entries.get(VOUCHER_ID);
+        ticket.setVoucherId(voucherId == null ? null : Long.valueOf(voucherId.toString()));
+        Object status = entries.get(STATUS);
+        ticket.setStatus(status == null ? PENDING : status.toString());
+        return ticket;
+    }
+
+    /**
+     * 查询所有优惠券还在写入中的用户数,seckill:pending-vouchers和票据一起过期,不单独删除,防止和创建票据并发时漏掉优惠券
+     * @return 优惠券id -> pending用户数,只包含有pending用户的优惠券
+     */
+    public Map<Long, Long> pendingCounts() {
+        Set<String> vouchers = stringRedisTemplate.opsForSet().members(SECKILL_PENDING_VOUCHERS_KEY);
+        if (vouchers == null || vouchers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> voucherIds = new ArrayList<>(vouchers);
+        long expired = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(SECKILL_TICKET_TTL);
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String voucherId : voucherIds) {
+                conn.zCount(SECKILL_PENDING_KEY + voucherId, expired, Double.MAX_VALUE);
+            }
+            return null;
+        });
+        Map<Long, Long> pending = new HashMap<>();
+        for (int i = 0; i < voucherIds.size(); i++) {
+            long count = ((Number) counts.get(i)).longValue();
+            if (count > 0) {
+                pending.put(Long.valueOf(voucherIds.get(i)), count);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 查询一张优惠券还在写入中的用户
+     * 票据的过期时间之前创建的pending记录认为已经过期,例如节点宕机时内存队列中丢失的订单,过期的记录顺便删除
+     */
+    public Set<Long> pendingUsers(Long voucherId) {
+        String key = SECKILL_PENDING_KEY + voucherId;
+        long expired = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(SECKILL_TICKET_TTL);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(key, 0, expired);
+        Set<String> members = stringRedisTemplate.opsForZSet().rangeByScore(key, expired, Double.MAX_VALUE);
+        Set<Long> users = new HashSet<>();
+        if (members != null) {
+            for (String member : members) {
+                users.add(Long.valueOf(member));
+            }
+        }
+        return users;
+    }
+}
@@ -0,0 +1,145 @@
+package com.xavier.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+import static com.xavier.utils.RedisConstants.CACHE_REBUILT_CHANNEL;
+import static com.xavier.utils.RedisConstants.LOCK_SHOP_TTL;
+
+/**
+ * 缓存重建的请求合并
+ * 同一个JVM中同一个key的并发未命中只会有一个线程真正去重建,其他线程共享它的结果;
+ * 其他节点上等待重建锁的线程通过发布订阅在重建完成时被唤醒,而不是睡眠轮询
+ */
+@Component
+@Slf4j
+public class SingleFlight implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 本JVM中正在重建的key,以及重建结果的future
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其他节点重建完成通知的key
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> watchers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_REBUILT_CHANNEL));
+    }
+
+    /**
+     * 合并同一个key的并发加载,第一个到达的线程执行loader,其余线程等待它的结果
+     * @param key 加载的key
+     * @param loader 真正的加载方法
+     * @param fallback 等待超时之后执行的加载方法,不再等待别的线程,例如直接查询数据库
+     * @param <T> 返回值类型
+     * @return 加载的结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T load(String key, Supplier<T> loader, Supplier<T> fallback) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // 已经有线程在加载了,等待它的结果
+            return (T) await(key, existing, fallback);
+        }
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 开始监听某个key的重建完成通知,需要在获取重建锁之前调用,防止错过通知
+     * @param key 监听的key
+     * @return 收到通知时完成的future
+     */
+    public CompletableFuture<Void> watch(String key) {
+        return watchers.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    /**
+     * 取消监听
+     */
+    public void unwatch(String key, CompletableFuture<Void> watcher) {
+        watchers.remove(key, watcher);
+    }
+
+    /**
+     * 等待其他节点重建完成的通知,超时也返回,由调用方重新检查redis
+     * @param watcher watch方法返回的future
+     * @param timeoutMillis 最长等待时间
+     */
+    public void awaitRebuilt(CompletableFuture<Void> watcher, long timeoutMillis) {
+        try {
+            watcher.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 超时不算错误,重新去检查一遍redis
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * 通知所有节点某个key重建完成了
+     * @param key 重建完成的key
+     */
+    public void notifyRebuilt(String key) {
+        stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        CompletableFuture<Void> watcher = watchers.remove(key);
+        if (watcher != null) {
+            watcher.complete(null);
+        }
+    }
+
+    /**
+     * 等待正在加载的线程的结果,等待超时说明它卡住了(例如数据库慢查询),这时候执行fallback,不让请求跟着失败
+     */
+    private Object await(String key, CompletableFuture<Object> future, Supplier<?> fallback) {
+        try {
+            return future.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            log.warn("等待缓存重建超时,直接加载:{}", key);
+            return fallback.get();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.xavier.utils;
+
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.xavier.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 雪花算法的id生成器,生成id时不访问redis
+ * id的格式为 1位标记 + 40位毫秒时间戳 + 10位worker id + 12位序列号,最高的标记位保证和RedisIWorker生成的id不会重复;
+ * worker id在启动时从redis租用,定时续约,redis暂时不可用时在租约到期之前继续使用已经租到的worker id;
+ * 时钟回拨时不等待,继续在最后使用的时间戳上递增序列号,序列号用完之后时间戳向前借一毫秒
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "comments.id.worker", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IIdWorker {
+    /**
+     * 时间戳的开始时间,2022-1-1:0:0:0的毫秒数
+     */
+    private static final long BEGIN_MILLIS = 1640995200000L;
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 10;
+    private static final int TIMESTAMP_BITS = 40;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    public static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long TIMESTAMP_MASK = (1L << TIMESTAMP_BITS) - 1;
+
+    /**
+     * 和RedisIWorker区分的标记位
+     */
+    private static final long SNOWFLAKE_FLAG = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 固定的worker id,大于等于0时不从redis租用
+     */
+    @Value("${comments.id.snowflake.worker-id:-1}")
+    private int fixedWorkerId;
+
+    /**
+     * worker id租约的有效期,也是redis不可用时还可以继续生成id的时间
+     */
+    @Value("${comments.id.snowflake.lease-millis:600000}")
+    private long leaseMillis;
+
+    /**
+     * 时钟回拨超过这个值时打印警告
+     */
+    @Value("${comments.id.snowflake.max-backward-millis:1000}")
+    private long maxBackwardMillis;
+
+    private final String instance = IdUtil.fastSimpleUUID();
+
+    private volatile long workerId = -1;
+
+    /**
+     * 租约在本地的到期时间(System.nanoTime),到期之后其他实例可能已经租用了这个worker id
+     */
+    private volatile long leaseDeadline;
+
+    /**
+     * 最后使用的时间戳和序列号,时间戳 << SEQUENCE_BITS | 序列号
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private final AtomicLong lastBackwardWarn = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        if (fixedWorkerId >= 0) {
+            if (fixedWorkerId >= MAX_WORKERS) {
+                throw new IllegalStateException("worker id必须小于" + MAX_WORKERS + ":" + fixedWorkerId);
+            }
+            workerId = fixedWorkerId;
+            state.set(currentMillis() << SEQUENCE_BITS);
+            log.info("使用固定的worker id:{}", workerId);
+            return;
+        }
+        if (!acquire()) {
+            throw new IllegalStateException("没有可以租用的worker id");
+        }
+    }
+
+    @Override
+    public long nextID(String keyPrefix) {
+        long worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("worker id的租约已经丢失,正在重新租用");
+        }
+        if (fixedWorkerId < 0 && System.nanoTime() - leaseDeadline > 0) {
+            throw new IllegalStateException("worker id的租约已经到期,无法续约");
+        }
+        while (true) {
+            long current = state.get();
+            long last = current >>> SEQUENCE_BITS;
+            long now = currentMillis();
+            long next;
+            if (now > last) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                if (last - now > maxBackwardMillis) {
+                    warnBackward(last - now);
+                }
+                // 同一毫秒内或者时钟回拨,在最后使用的时间戳上递增序列号,用完之后借用下一毫秒
+                next = (current & SEQUENCE_MASK) < SEQUENCE_MASK ? current + 1 : (last + 1) << SEQUENCE_BITS;
+            }
+            if (state.compareAndSet(current, next)) {
+                long timestamp = (next >>> SEQUENCE_BITS) & TIMESTAMP_MASK;
+                return SNOWFLAKE_FLAG | timestamp << (WORKER_BITS + SEQUENCE_BITS)
+                        | worker << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * 定时续约worker id,同时记录最后使用的时间戳,下一个租用这个worker id的实例从这个时间戳之后开始
+     */
+    @Scheduled(fixedDelayString = "${comments.id.snowflake.heartbeat-millis:10000}")
+    public void heartbeat() {
+        if (fixedWorkerId >= 0) {
+            return;
+        }
+        long worker = workerId;
+        try {
+            if (worker < 0) {
+                acquire();
+                return;
+            }
+            long renewAt = System.nanoTime();
+            Long renewed = stringRedisTemplate.execute(LEASE_SCRIPT, Arrays.asList(leaseKey(worker), lastKey(worker)),
+                    instance, String.valueOf(leaseMillis), String.valueOf(state.get() >>> SEQUENCE_BITS));
+            if (renewed != null && renewed == 1) {
+                leaseDeadline = renewAt + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+                return;
+            }
+            // 租约过期之后被其他实例占用,停止生成id,重新租用
+            log.error("worker id的租约已经被其他实例占用:{}", worker);
+            workerId = -1;
+            acquire();
+        } catch (Exception e) {
+            // redis不可用时其他实例也无法租用,租约到期之前继续使用当前的worker id
+            log.warn("续约worker id失败:{}", worker, e);
+        }
+    }
+
+    /**
+     * 从随机的位置开始依次尝试租用worker id
+     */
+    private boolean acquire() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int worker = (start + i) % MAX_WORKERS;
+            long leaseAt = System.nanoTime();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(leaseKey(worker), instance, leaseMillis, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            // 正常退出时记录了最后的时间戳;异常退出时租约要等到过期才能被租用,这时的时间已经在它生成的所有id之后,
+            // 只有发生了时钟回拨才会小于最后记录的时间戳
+            String last = stringRedisTemplate.opsForValue().get(lastKey(worker));
+            long begin = last == null ? 0 : Long.parseLong(last) + 1;
+            state.set(Math.max(currentMillis(), begin) << SEQUENCE_BITS);
+            leaseDeadline = leaseAt + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            workerId = worker;
+            log.info("租用worker id:{}", worker);
+            return true;
+        }
+        return false;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        long worker = workerId;
+        if (fixedWorkerId >= 0 || worker < 0) {
+            return;
+        }
+        try {
+            // 记录最后的时间戳之后释放租约
+            stringRedisTemplate.opsForValue().set(lastKey(worker), String.valueOf(state.get() >>> SEQUENCE_BITS));
+            if (instance.equals(stringRedisTemplate.opsForValue().get(leaseKey(worker)))) {
+                stringRedisTemplate.delete(leaseKey(worker));
+            }
+        } catch (Exception e) {
+            log.warn("释放worker id失败:{}", worker, e);
+        }
+    }
+
+    private void warnBackward(long millis) {
+        long now = System.currentTimeMillis();
+        long last = lastBackwardWarn.get();
+        if (now - last > TimeUnit.MINUTES.toMillis(1) && lastBackwardWarn.compareAndSet(last, now)) {
+            log.warn("时钟回拨{}ms,继续使用最后的时间戳生成id", millis);
+        }
+    }
+
+    private static long currentMillis() {
+        return System.currentTimeMillis() - BEGIN_MILLIS;
+    }
+
+    private static String leaseKey(long worker) {
+        return ID_WORKER_KEY + "{" + worker + "}";
+    }
+
+    private static String lastKey(long worker) {
+        return ID_WORKER_KEY + "{" + worker + "}:last";
+    }
+}
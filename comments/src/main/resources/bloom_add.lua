@@ -0,0 +1,19 @@
+-- 布隆过滤器中添加一个id
+-- 偏移量是调用方按照本地缓存的位数和哈希次数计算的,其他节点重建之后这两个参数可能已经变了,
+-- 所以先检查redis中的参数和计算时使用的一致,一致才写入,检查和写入在一个脚本中执行,不会和重建的替换交错
+-- 位数组的key
+local key = KEYS[1]
+-- 过滤器参数的key
+local metaKey = KEYS[2]
+-- 计算偏移量时使用的位数和哈希次数
+local bits = ARGV[1]
+local hashes = ARGV[2]
+local meta = redis.call("hmget",metaKey,"bits","hashes")
+if meta[1] ~= bits or meta[2] ~= hashes then
+    -- 参数已经变了,由调用方重新加载过滤器之后再计算偏移量
+    return 0
+end
+for i = 3, #ARGV do
+    redis.call("setbit",key,ARGV[i],1)
+end
+return 1
@@ -0,0 +1,11 @@
+-- 布隆过滤器重建完成之后,用新的位数组替换旧的,同时更新位数和哈希次数
+-- 两步在一个脚本中执行,其他节点不会读到新的位数组配上旧的参数
+-- 临时的位数组key
+local tmpKey = KEYS[1]
+-- 位数组的key
+local key = KEYS[2]
+-- 过滤器参数的key
+local metaKey = KEYS[3]
+redis.call("rename",tmpKey,key)
+redis.call("hmset",metaKey,"bits",ARGV[1],"hashes",ARGV[2])
+return 1
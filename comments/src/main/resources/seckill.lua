@@ -1,20 +1,45 @@
--- 获取优惠券id
-local voucherId = ARGV[1]
+-- 在用户所在的分片上秒杀,同一个分片的key使用相同的hash tag,集群中位于同一个slot
+-- 分片的库存key
+local stockKey = KEYS[1]
+-- 分片的已购买用户key
+local orderKey = KEYS[2]
+-- 分片的订单stream的key
+local streamKey = KEYS[3]
+-- 分片的秒杀时间窗口key
+local windowKey = KEYS[4]
+-- 请求的幂等key,和用户所在的分片使用相同的hash tag,客户端没有传Idempotency-Key时为nil
+local idempotencyKey = KEYS[5]
 -- 获取用户id
-local userId = ARGV[2]
--- 秒杀库存的前缀
-local SECKILL_STOCK_KEY = ARGV[3]
--- 秒杀订单的前缀
-local SECKILL_ORDER_KEY = ARGV[4]
--- 库存的key
-local stockKey = SECKILL_STOCK_KEY .. voucherId
--- 订单的key
-local orderKey = SECKILL_ORDER_KEY .. voucherId
--- 判断库存是否足够
-local stock = redis.call("get",stockKey)
-if tonumber(stock) <= 0 then
-    -- 库存不足
-    return 1
+local userId = ARGV[1]
+-- 获取优惠券id
+local voucherId = ARGV[2]
+-- 订单id
+local orderId = ARGV[3]
+-- 是否写入stream,为0时由调用方把订单交给内存队列
+local useStream = ARGV[4]
+-- stream的大致最大长度
+local streamMaxLen = ARGV[5]
+-- 幂等key的过期时间,秒
+local idempotencyTtl = ARGV[6]
+-- 判断是否在秒杀时间内,时间窗口由生命周期调度在秒杀开始之前写入,使用redis的时间
+local window = redis.call("hmget",windowKey,"begin","end")
+if not window[1] or not window[2] then
+    -- 还没有预热或者已经结束清理了
+    return 6
+end
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if now < tonumber(window[1]) then
+    -- 秒杀还没有开始
+    return 4
+end
+if now > tonumber(window[2]) then
+    -- 秒杀已经结束
+    return 5
+end
+-- 同一个幂等key的请求已经下过单了,由调用方读取原来的订单id
+if idempotencyKey and redis.call("exists",idempotencyKey) == 1 then
+    return 7
 end
 -- 判断用户是否已经购买过该优惠券
 local hadBuy = redis.call("sismember",orderKey,userId)
@@ -22,9 +47,23 @@ if hadBuy == 1 then
     -- 重复下单
     return 2
 end
+-- 添加订单,这个分片没有库存的时候也先记录用户,防止去其他分片扣减库存时同一个用户重复下单
+redis.call("sadd",orderKey,userId)
+-- 和记录用户一起记录幂等key对应的订单id,之后在其他分片上扣减库存失败时由调用方删除
+if idempotencyKey then
+    redis.call("set",idempotencyKey,orderId,"EX",idempotencyTtl)
+end
+-- 判断库存是否足够
+local stock = tonumber(redis.call("get",stockKey))
+if stock == nil or stock <= 0 then
+    -- 这个分片的库存不足,需要去其他分片扣减
+    return 3
+end
 -- 扣减库存
 redis.call("incrby",stockKey,-1)
--- 添加订单
-redis.call("sadd",orderKey,userId)
+-- 和扣减库存一起把订单写入stream,由消费者组异步写入数据库
+if useStream == "1" then
+    redis.call("xadd",streamKey,"MAXLEN","~",streamMaxLen,"*","userId",userId,"voucherId",voucherId,"id",orderId)
+end
 -- 可以下单了
 return 0
@@ -0,0 +1,76 @@
+-- 批量秒杀,同一张优惠券同一个分片上并发的多个购买请求在一次脚本调用中按顺序处理,每个请求的处理和seckill.lua相同
+-- 分片的库存key
+local stockKey = KEYS[1]
+-- 分片的已购买用户key
+local orderKey = KEYS[2]
+-- 分片的订单stream的key
+local streamKey = KEYS[3]
+-- 分片的秒杀时间窗口key
+local windowKey = KEYS[4]
+-- KEYS[5]之后是请求的幂等key,和分片使用相同的hash tag
+-- 获取优惠券id
+local voucherId = ARGV[1]
+-- 是否写入stream,为0时由调用方把订单交给内存队列
+local useStream = ARGV[2]
+-- stream的大致最大长度
+local streamMaxLen = ARGV[3]
+-- 幂等key的过期时间,秒
+local idempotencyTtl = ARGV[4]
+-- 之后每三个参数是一个请求的用户id、订单id和幂等key在KEYS中的下标(没有时为0),返回每个请求的结果
+local results = {}
+-- 不在秒杀时间内的时候这一批的结果都相同
+local function all(code)
+    for i = 5, #ARGV, 3 do
+        results[#results + 1] = code
+    end
+    return results
+end
+-- 判断是否在秒杀时间内,时间窗口由生命周期调度在秒杀开始之前写入,使用redis的时间
+local window = redis.call("hmget",windowKey,"begin","end")
+if not window[1] or not window[2] then
+    -- 还没有预热或者已经结束清理了
+    return all(6)
+end
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if now < tonumber(window[1]) then
+    -- 秒杀还没有开始
+    return all(4)
+end
+if now > tonumber(window[2]) then
+    -- 秒杀已经结束
+    return all(5)
+end
+local stock = tonumber(redis.call("get",stockKey))
+for i = 5, #ARGV, 3 do
+    local userId = ARGV[i]
+    local orderId = ARGV[i + 1]
+    local idempotencyKey = KEYS[tonumber(ARGV[i + 2])]
+    -- 同一个幂等key的请求已经下过单了,同一批中相同幂等key的第二个请求也是
+    if idempotencyKey and redis.call("exists",idempotencyKey) == 1 then
+        results[#results + 1] = 7
+    -- 添加用户,已经存在说明重复下单,同一批中同一个用户的第二个请求也是重复下单
+    -- 这个分片没有库存的时候也先记录用户,防止去其他分片扣减库存时同一个用户重复下单
+    elseif redis.call("sadd",orderKey,userId) == 0 then
+        results[#results + 1] = 2
+    elseif stock == nil or stock <= 0 then
+        -- 这个分片的库存不足,需要去其他分片扣减
+        if idempotencyKey then
+            redis.call("set",idempotencyKey,orderId,"EX",idempotencyTtl)
+        end
+        results[#results + 1] = 3
+    else
+        if idempotencyKey then
+            redis.call("set",idempotencyKey,orderId,"EX",idempotencyTtl)
+        end
+        -- 扣减库存
+        stock = stock - 1
+        redis.call("incrby",stockKey,-1)
+        -- 和扣减库存一起把订单写入stream,由消费者组异步写入数据库
+        if useStream == "1" then
+            redis.call("xadd",streamKey,"MAXLEN","~",streamMaxLen,"*","userId",userId,"voucherId",voucherId,"id",orderId)
+        end
+        results[#results + 1] = 0
+    end
+end
+return results
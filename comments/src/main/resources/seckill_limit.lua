@@ -0,0 +1,25 @@
+-- 秒杀券的分布式滑动窗口限流,用当前窗口和上一个窗口的计数按时间加权估算最近一个窗口内的请求数
+-- 限流的key,hash的field是窗口的序号,值是这个窗口内放行的请求数
+local limitKey = KEYS[1]
+-- 一个窗口内最多放行的请求数
+local limit = tonumber(ARGV[1])
+-- 窗口的毫秒数
+local window = tonumber(ARGV[2])
+-- 使用redis的时间,避免各个节点的时钟不一致
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local index = math.floor(now / window)
+local elapsed = now - index * window
+local current = tonumber(redis.call("hget", limitKey, tostring(index)) or "0")
+local previous = tonumber(redis.call("hget", limitKey, tostring(index - 1)) or "0")
+-- 上一个窗口中还在滑动窗口内的部分按比例计算
+local estimated = previous * (window - elapsed) / window + current
+if estimated + 1 > limit then
+    -- 超出限制,返回建议的重试等待毫秒数:当前窗口剩余的时间
+    return window - elapsed
+end
+redis.call("hincrby", limitKey, tostring(index), 1)
+redis.call("hdel", limitKey, tostring(index - 2))
+redis.call("pexpire", limitKey, window * 2)
+-- 放行
+return 0
@@ -0,0 +1,27 @@
+-- 用户所在的分片没有库存时,在其他分片上扣减库存,用户已经在自己的分片上记录过了
+-- 分片的库存key
+local stockKey = KEYS[1]
+-- 分片的订单stream的key
+local streamKey = KEYS[2]
+-- 获取用户id
+local userId = ARGV[1]
+-- 获取优惠券id
+local voucherId = ARGV[2]
+-- 订单id
+local orderId = ARGV[3]
+-- 是否写入stream
+local useStream = ARGV[4]
+-- stream的大致最大长度
+local streamMaxLen = ARGV[5]
+-- 判断库存是否足够
+local stock = tonumber(redis.call("get",stockKey))
+if stock == nil or stock <= 0 then
+    -- 库存不足
+    return 1
+end
+-- 扣减库存
+redis.call("incrby",stockKey,-1)
+if useStream == "1" then
+    redis.call("xadd",streamKey,"MAXLEN","~",streamMaxLen,"*","userId",userId,"voucherId",voucherId,"id",orderId)
+end
+return 0
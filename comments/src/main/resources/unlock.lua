@@ -8,6 +8,6 @@ local now = redis.call("get",key)
 
 -- 如果两者相等的话,则释放锁
 if now == value then
-    return redis.call("delete",key)
+    return redis.call("del",key)
 end
 return 0
\ No newline at end of file
@@ -0,0 +1,24 @@
+-- 续约雪花算法的worker id,两个key使用相同的hash tag
+-- worker id的租约key
+local leaseKey = KEYS[1]
+-- 这个worker id最后使用的时间戳
+local lastKey = KEYS[2]
+-- 当前实例的标识
+local instance = ARGV[1]
+-- 租约的有效期(毫秒)
+local ttl = ARGV[2]
+-- 当前实例最后使用的时间戳
+local lastTimestamp = ARGV[3]
+local owner = redis.call("get",leaseKey)
+if owner == instance then
+    -- 还是自己的租约,续期
+    redis.call("pexpire",leaseKey,ttl)
+elseif owner == false then
+    -- 租约已经过期但是没有被其他实例占用,重新占用
+    redis.call("set",leaseKey,instance,"PX",ttl)
+else
+    -- 已经被其他实例占用
+    return 0
+end
+redis.call("set",lastKey,lastTimestamp)
+return 1
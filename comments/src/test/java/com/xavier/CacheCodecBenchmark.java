@@ -0,0 +1,113 @@
+package com.xavier;
+
+import cn.hutool.json.JSONUtil;
+import com.xavier.entity.Blog;
+import com.xavier.entity.Shop;
+import com.xavier.entity.ShopType;
+import com.xavier.utils.CacheCodec;
+import com.xavier.utils.JsonCacheCodec;
+import com.xavier.utils.KryoCacheCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 比较缓存编解码器每次命中(解码)的cpu耗时以及写入redis的数据大小,不需要启动spring
+ * 耗时较长,默认不执行: mvn test -Dtest=CacheCodecBenchmark -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class CacheCodecBenchmark {
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec kryo = new KryoCacheCodec();
+
+    @Test
+    public void shop() {
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00").setCreateTime(LocalDateTime.now()).setUpdateTime(LocalDateTime.now());
+        compare("Shop", shop, bytes -> json.decode(bytes, 0, Shop.class), bytes -> kryo.decode(bytes, 0, Shop.class));
+    }
+
+    @Test
+    public void blog() {
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(10L);
+        blog.setUserId(1L);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg");
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            content.append("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>");
+        }
+        blog.setContent(content.toString());
+        blog.setLiked(1);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.now());
+        blog.setUpdateTime(LocalDateTime.now());
+        compare("Blog", blog, bytes -> json.decode(bytes, 0, Blog.class), bytes -> kryo.decode(bytes, 0, Blog.class));
+    }
+
+    @Test
+    public void shopTypeList() {
+        List<ShopType> shopTypes = new ArrayList<>();
+        String[] names = {"美食", "KTV", "丽人·美发", "健身运动", "按摩·足疗", "美容SPA", "亲子游乐", "酒吧", "轰趴馆", "美睫·美甲"};
+        for (int i = 0; i < names.length; i++) {
+            ShopType shopType = new ShopType();
+            shopType.setId(i + 1L);
+            shopType.setName(names[i]);
+            shopType.setIcon("/types/" + (i + 1) + ".png");
+            shopType.setSort(i + 1);
+            shopType.setCreateTime(LocalDateTime.now());
+            shopType.setUpdateTime(LocalDateTime.now());
+            shopTypes.add(shopType);
+        }
+        compare("List<ShopType>", shopTypes,
+                bytes -> json.decodeList(bytes, 0, ShopType.class), bytes -> kryo.decodeList(bytes, 0, ShopType.class));
+    }
+
+    private void compare(String name, Object value,
+                         Function<byte[], Object> jsonDecoder,
+                         Function<byte[], Object> kryoDecoder) {
+        byte[] jsonBytes = json.encode(value);
+        byte[] kryoBytes = kryo.encode(value);
+        // 编解码之后的数据应该和原来的一致
+        Assertions.assertEquals(value, kryoDecoder.apply(kryoBytes));
+        Assertions.assertEquals(JSONUtil.toJsonStr(value), JSONUtil.toJsonStr(jsonDecoder.apply(jsonBytes)));
+
+        long jsonNanos = cpuNanosPerOp(() -> jsonDecoder.apply(jsonBytes));
+        long kryoNanos = cpuNanosPerOp(() -> kryoDecoder.apply(kryoBytes));
+        System.out.printf("%-15s json: %5d bytes %7d ns/hit | kryo: %5d bytes %7d ns/hit%n",
+                name, jsonBytes.length, jsonNanos, kryoBytes.length, kryoNanos);
+        Assertions.assertTrue(kryoBytes.length < jsonBytes.length);
+    }
+
+    private long cpuNanosPerOp(Supplier<Object> op) {
+        Object sink = null;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink = op.get();
+        }
+        long start = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = op.get();
+        }
+        long nanos = threadMXBean.getCurrentThreadCpuTime() - start;
+        Assertions.assertNotNull(sink);
+        return nanos / ITERATIONS;
+    }
+}
@@ -2,10 +2,13 @@ package com.xavier;
 
 import cn.hutool.core.thread.ThreadUtil;
 import com.xavier.utils.RedisIWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 
@@ -19,6 +22,8 @@ public class RedisWorkerTest {
     // 即生成一个300位的计数器,每一个线程完成任务之后主动对这个计数器进行减操作,在计数器为0时
     // 这个计数器的await方法才会被通行,否则一直等待到0才向下执行.
     private CountDownLatch countDownLatch = ThreadUtil.newCountDownLatch(300);
+    // 号段模式下多个线程并发分配,所有id都不能重复
+    private Set<Long> ids = ConcurrentHashMap.newKeySet();
 
     @Test
     public void testNextID() throws InterruptedException {
@@ -27,7 +32,7 @@ public class RedisWorkerTest {
         Runnable task = () -> {
             for (int i = 0; i < 100; i++) {
                 long id = redisWorker.nextID("order");
-                System.out.println(id);
+                ids.add(id);
             }
             // 每次任务完成countDown一下,300个任务countDown300下
             countDownLatch.countDown();
@@ -40,6 +45,7 @@ public class RedisWorkerTest {
         countDownLatch.await();
         long end = System.currentTimeMillis();
         System.out.println(end - start);
+        Assertions.assertEquals(300 * 100, ids.size());
 
     }
 }
@@ -0,0 +1,307 @@
+package com.xavier;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.xavier.entity.Voucher;
+import com.xavier.service.IVoucherService;
+import com.xavier.utils.SeckillReconciler;
+import com.xavier.utils.SeckillStockShards;
+import com.xavier.utils.SeckillTickets;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.xavier.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.xavier.utils.RedisConstants.SECKILL_TICKET_KEY;
+
+/**
+ * 秒杀接口的压测,使用内嵌的redis和h2数据库启动整个应用,模拟大量用户同时请求/voucher-order/seckill/{id}
+ * 输出吞吐量和延迟分位数,并检查是否超卖、是否有用户重复下单、数据库和redis的库存是否一致
+ * 默认不执行,需要指定-Dloadtest=true:
+ * mvn test -Dtest=SeckillLoadTest -Dloadtest=true -Dloadtest.users=20000 -Dloadtest.stock=1000 -Dloadtest.queue=stream
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("loadtest")
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+public class SeckillLoadTest {
+    private static final int USERS = Integer.getInteger("loadtest.users", 20000);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("loadtest.requests-per-user", 2);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int CLIENTS = Integer.getInteger("loadtest.clients", 500);
+    private static final String QUEUE = System.getProperty("loadtest.queue", "stream");
+    private static final long PERSIST_TIMEOUT_MILLIS = 60000;
+    private static final String RETRY_AFTER = "retryAfter";
+
+    private static RedisServer redisServer;
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int redisPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            redisPort = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer().port(redisPort)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .setting("maxclients 10000")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> redisPort);
+        registry.add("comments.seckill.order.queue", () -> QUEUE);
+        // 每次使用新的日志目录,不能重放上一次压测的订单
+        Path journalDir = Files.createTempDirectory("seckill-journal");
+        registry.add("comments.seckill.order.journal.dir", journalDir::toString);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    public void testSeckillUnderLoad() throws Exception {
+        long voucherId = createSeckillVoucher();
+        List<String> tokens = login();
+        System.setProperty("http.maxConnections", String.valueOf(CLIENTS));
+        // 每个用户请求多次,打乱顺序之后并发发送
+        List<String> requests = new ArrayList<>(USERS * REQUESTS_PER_USER);
+        for (int i = 0; i < REQUESTS_PER_USER; i++) {
+            requests.addAll(tokens);
+        }
+        Collections.shuffle(requests);
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+        long[] latencies = new long[requests.size()];
+        AtomicInteger next = new AtomicInteger();
+        Set<Long> orderIds = ConcurrentHashMap.newKeySet();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicInteger throttled = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        CountDownLatch ready = new CountDownLatch(CLIENTS);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            futures.add(clients.submit(() -> {
+                ready.countDown();
+                go.await();
+                int i;
+                while ((i = next.getAndIncrement()) < requests.size()) {
+                    long start = System.nanoTime();
+                    JSONObject result = post(url, requests.get(i));
+                    latencies[i] = System.nanoTime() - start;
+                    // 被准入控制拒绝的请求按照Retry-After等待之后重试,延迟只统计最后一次请求
+                    while (result != null && result.containsKey(RETRY_AFTER)) {
+                        throttled.incrementAndGet();
+                        TimeUnit.SECONDS.sleep(result.getLong(RETRY_AFTER));
+                        start = System.nanoTime();
+                        result = post(url, requests.get(i));
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                    if (result == null) {
+                        errors.incrementAndGet();
+                    } else if (Boolean.TRUE.equals(result.getBool("success"))) {
+                        succeeded.incrementAndGet();
+                        orderIds.add(result.getLong("data"));
+                    } else {
+                        rejected.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        go.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        clients.shutdown();
+
+        int orders = waitForOrders(voucherId, succeeded.get());
+        report(requests.size(), elapsed, latencies, succeeded.get(), rejected.get(), throttled.get(), errors.get(), orders);
+
+        Assertions.assertEquals(0, errors.get(), "请求失败");
+        // 不能超卖,用户数多于库存时也不能少卖
+        Assertions.assertEquals(Math.min(STOCK, USERS), succeeded.get(), "成功的订单数");
+        Assertions.assertEquals(succeeded.get(), orderIds.size(), "订单id重复");
+        Assertions.assertEquals(succeeded.get(), orders, "写入数据库的订单数");
+        Integer users = jdbcTemplate.queryForObject(
+                "select count(distinct user_id) from tb_voucher_order where voucher_id = ?", Integer.class, voucherId);
+        Assertions.assertEquals(orders, users, "有用户重复下单");
+        Integer dbStock = jdbcTemplate.queryForObject(
+                "select stock from tb_seckill_voucher where voucher_id = ?", Integer.class, voucherId);
+        Assertions.assertEquals(STOCK - orders, dbStock, "数据库库存");
+        Assertions.assertEquals(STOCK - succeeded.get(), redisStock(voucherId), "redis库存");
+        Assertions.assertEquals(succeeded.get(), persistedTickets(orderIds), "票据状态为persisted的订单数");
+        Assertions.assertFalse(seckillReconciler.reconcile(voucherId), "redis和数据库对账存在差异");
+    }
+
+    private long createSeckillVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 直接在redis中写入每个用户的登录token
+     */
+    private List<String> login() {
+        List<String> tokens = new ArrayList<>(USERS);
+        for (int i = 1; i <= USERS; i++) {
+            tokens.add("loadtest-" + i);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 1; i <= USERS; i++) {
+                Map<String, String> user = new HashMap<>();
+                user.put("id", String.valueOf(i));
+                user.put("nickName", "user_" + i);
+                user.put("icon", "");
+                conn.hMSet(LOGIN_USER_KEY + tokens.get(i - 1), user);
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private JSONObject post(URL url, String token) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("token", token);
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(30000);
+            if (connection.getResponseCode() != 200) {
+                return null;
+            }
+            String retryAfter = connection.getHeaderField("Retry-After");
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[512];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                JSONObject result = JSONUtil.parseObj(new String(out.toByteArray(), StandardCharsets.UTF_8));
+                if (retryAfter != null) {
+                    result.set(RETRY_AFTER, Long.parseLong(retryAfter));
+                }
+                return result;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 订单是异步写入数据库的,等待全部写入或者超时
+     */
+    private int waitForOrders(long voucherId, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MILLIS;
+        int orders;
+        do {
+            orders = jdbcTemplate.queryForObject(
+                    "select count(*) from tb_voucher_order where voucher_id = ?", Integer.class, voucherId);
+            if (orders >= expected) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(200);
+        } while (System.currentTimeMillis() < deadline);
+        return orders;
+    }
+
+    private long redisStock(long voucherId) {
+        long stock = 0;
+        for (String value : stringRedisTemplate.opsForValue().multiGet(seckillStockShards.stockKeys(voucherId))) {
+            stock += Long.parseLong(value);
+        }
+        return stock;
+    }
+
+    private long persistedTickets(Set<Long> orderIds) {
+        List<Object> statuses = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                conn.hGet(SECKILL_TICKET_KEY + orderId, "status");
+            }
+            return null;
+        });
+        return statuses.stream().filter(SeckillTickets.PERSISTED::equals).count();
+    }
+
+    private void report(int requests, long elapsedNanos, long[] latencies, int succeeded, int rejected, int throttled,
+                        int errors, int orders) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("seckill load test: queue=%s users=%d requests=%d clients=%d stock=%d%n",
+                QUEUE, USERS, requests, CLIENTS, STOCK);
+        System.out.printf("  throughput: %.0f req/s, elapsed %d ms%n",
+                requests * 1e9 / elapsedNanos, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        System.out.printf("  latency: p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n",
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+        System.out.printf("  succeeded %d, rejected %d, throttled %d, errors %d, persisted %d%n",
+                succeeded, rejected, throttled, errors, orders);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,72 @@
+package com.xavier;
+
+import com.xavier.entity.VoucherOrder;
+import com.xavier.utils.SeckillOrderJournal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 订单预写日志的追加、读取、checkpoint以及重启之后的重放
+ */
+public class SeckillOrderJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testReplayAfterRestart() throws Exception {
+        // 每个段只有10条记录,覆盖跨段读写和删除消费完的段
+        SeckillOrderJournal journal = new SeckillOrderJournal(dir, 10);
+        long end = 0;
+        for (long i = 1; i <= 35; i++) {
+            end = journal.append(order(i));
+        }
+        Assertions.assertTrue(journal.awaitFlushed(end, 5000));
+        List<VoucherOrder> first = journal.read(25, 0);
+        Assertions.assertEquals(25, first.size());
+        Assertions.assertEquals(order(25), first.get(24));
+        journal.commit();
+        // 读取之后没有commit的订单在重启之后需要重放
+        Assertions.assertEquals(5, journal.read(5, 0).size());
+        journal.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            Assertions.assertEquals(2, files.filter(p -> p.toString().endsWith(".log")).count(), "消费完的段文件没有删除");
+        }
+
+        journal = new SeckillOrderJournal(dir, 10);
+        Assertions.assertEquals(10, journal.getPending());
+        List<VoucherOrder> replayed = new ArrayList<>(journal.read(100, 0));
+        Assertions.assertEquals(range(26, 35), replayed.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        journal.commit();
+        // 重放之后继续追加
+        end = journal.append(order(36));
+        Assertions.assertTrue(journal.awaitFlushed(end, 5000));
+        Assertions.assertEquals(order(36), journal.read(100, 0).get(0));
+        journal.commit();
+        Assertions.assertEquals(0, journal.getPending());
+        journal.close();
+    }
+
+    private static VoucherOrder order(long id) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(1000 + id);
+        voucherOrder.setVoucherId(id % 3);
+        return voucherOrder;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long i = from; i <= to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+}